@@ -0,0 +1,256 @@
+package fi.moprim.widget.treeview.example;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Choreographer;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+import java.util.Random;
+
+import fi.moprim.widget.treeview.TreeAdapter;
+import fi.moprim.widget.treeview.TreeNode;
+import fi.moprim.widget.treeview.TreeView;
+
+/**
+ * Drives a tree view with a generated tree and random weight updates at a set rate,
+ * and shows how long the view takes to lay out and draw its frames.
+ */
+public class StressActivity extends AppCompatActivity
+        implements TreeView.FrameTimingListener, Choreographer.FrameCallback, SeekBar.OnSeekBarChangeListener {
+
+    private static final int MIN_WIDTH = 2;
+    private static final int MAX_WIDTH = 10;
+    private static final int MIN_DEPTH = 1;
+    private static final int MAX_DEPTH = 5;
+    // Tenths of the skew exponent
+    private static final int MAX_SKEW = 20;
+    private static final int MAX_RATE = 60;
+    // Each update changes one leaf in this many, and at least one
+    private static final int LEAF_FRACTION_DIVISOR = 100;
+    private static final long METRICS_PERIOD_MILLIS = 500;
+    private static final int[] COLORS = {
+            android.R.color.holo_blue_dark,
+            android.R.color.holo_green_dark,
+            android.R.color.holo_orange_dark,
+            android.R.color.holo_red_dark,
+            android.R.color.holo_purple
+    };
+
+    private final Random random = new Random();
+    private final Handler handler = new Handler();
+    private TreeView treeView;
+    private TextView metricsView;
+    private TextView widthLabel;
+    private TextView depthLabel;
+    private TextView skewLabel;
+    private TextView rateLabel;
+    private SeekBar widthBar;
+    private SeekBar depthBar;
+    private SeekBar skewBar;
+    private SeekBar rateBar;
+    private TreeAdapter adapter;
+    private TreeNode[] leaves;
+    private int leafCount;
+    // Measured since the metrics were last shown
+    private int frames;
+    private long layoutNanos;
+    private long drawNanos;
+    private long maxDrawNanos;
+    private int sliceCount;
+    private int droppedFrames;
+    private long lastFrameNanos;
+    private long framePeriodNanos;
+
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            updateWeights();
+            int rate = rateBar.getProgress();
+            if (rate > 0) {
+                handler.postDelayed(this, 1000 / rate);
+            }
+        }
+    };
+
+    private final Runnable showMetrics = new Runnable() {
+        @Override
+        public void run() {
+            double toMillis = frames == 0 ? 0 : 1e-6 / frames;
+            metricsView.setText(getString(R.string.stress_metrics, layoutNanos * toMillis, drawNanos * toMillis,
+                    maxDrawNanos * 1e-6, sliceCount, droppedFrames));
+            frames = 0;
+            layoutNanos = 0;
+            drawNanos = 0;
+            maxDrawNanos = 0;
+            handler.postDelayed(this, METRICS_PERIOD_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stress);
+        treeView = (TreeView) findViewById(R.id.tree_view);
+        metricsView = (TextView) findViewById(R.id.metrics);
+        widthLabel = (TextView) findViewById(R.id.width_label);
+        depthLabel = (TextView) findViewById(R.id.depth_label);
+        skewLabel = (TextView) findViewById(R.id.skew_label);
+        rateLabel = (TextView) findViewById(R.id.rate_label);
+        widthBar = setUpBar(R.id.width_bar, MAX_WIDTH - MIN_WIDTH, 4 - MIN_WIDTH);
+        depthBar = setUpBar(R.id.depth_bar, MAX_DEPTH - MIN_DEPTH, 4 - MIN_DEPTH);
+        skewBar = setUpBar(R.id.skew_bar, MAX_SKEW, 10);
+        rateBar = setUpBar(R.id.rate_bar, MAX_RATE, 30);
+        updateLabels();
+        treeView.setFrameTimingListener(this);
+        generate();
+        float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+        framePeriodNanos = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    private SeekBar setUpBar(int id, int max, int progress) {
+        SeekBar bar = (SeekBar) findViewById(id);
+        bar.setMax(max);
+        bar.setProgress(progress);
+        bar.setOnSeekBarChangeListener(this);
+        return bar;
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        lastFrameNanos = 0;
+        droppedFrames = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+        handler.post(showMetrics);
+        restartUpdates();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        Choreographer.getInstance().removeFrameCallback(this);
+        handler.removeCallbacks(showMetrics);
+        handler.removeCallbacks(update);
+    }
+
+    @Override
+    public void onFrameTiming(long layoutNanos, long drawNanos, int sliceCount) {
+        this.frames++;
+        this.layoutNanos += layoutNanos;
+        this.drawNanos += drawNanos;
+        this.maxDrawNanos = Math.max(maxDrawNanos, drawNanos);
+        this.sliceCount = sliceCount;
+    }
+
+    /**
+     * Counts the vsyncs missed between two frames, whatever was late
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (lastFrameNanos != 0) {
+            long missed = Math.round((frameTimeNanos - lastFrameNanos) / (double) framePeriodNanos) - 1;
+            droppedFrames += Math.max(missed, 0);
+        }
+        lastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+        updateLabels();
+        if (seekBar == rateBar) {
+            restartUpdates();
+        }
+    }
+
+    @Override
+    public void onStartTrackingTouch(SeekBar seekBar) {
+
+    }
+
+    @Override
+    public void onStopTrackingTouch(SeekBar seekBar) {
+        if (seekBar != rateBar) {
+            generate();
+        }
+    }
+
+    private void updateLabels() {
+        widthLabel.setText(getString(R.string.stress_width, MIN_WIDTH + widthBar.getProgress()));
+        depthLabel.setText(getString(R.string.stress_depth, MIN_DEPTH + depthBar.getProgress()));
+        skewLabel.setText(getString(R.string.stress_skew, skewBar.getProgress() / 10f));
+        rateLabel.setText(getString(R.string.stress_rate, rateBar.getProgress()));
+    }
+
+    private void restartUpdates() {
+        handler.removeCallbacks(update);
+        int rate = rateBar.getProgress();
+        if (rate > 0) {
+            handler.postDelayed(update, 1000 / rate);
+        }
+    }
+
+    /**
+     * Every node has width children down to the depth. The i-th child weighs about 1 / (i + 1)^skew
+     * of the first one, every parent weighs the sum of its children.
+     */
+    private void generate() {
+        int width = MIN_WIDTH + widthBar.getProgress();
+        int depth = MIN_DEPTH + depthBar.getProgress();
+        double skew = skewBar.getProgress() / 10.0;
+        int nodeCount = 0;
+        int levelCount = 1;
+        for (int level = 0; level < depth; level++) {
+            levelCount *= width;
+            nodeCount += levelCount;
+        }
+        adapter = TreeAdapter.withCompactStore(nodeCount);
+        leaves = new TreeNode[levelCount];
+        leafCount = 0;
+        generate(null, 1, width, depth, skew, 1, 0);
+        treeView.setTreeMapAdapter(adapter);
+    }
+
+    /**
+     * @param scale the share of the leaves of the parent, from the position of the parent and its ancestors
+     * @return the weight of the children
+     */
+    private double generate(TreeNode parent, int level, int width, int depth, double skew, double scale, int color) {
+        double weight = 0;
+        for (int i = 0; i < width; i++) {
+            String label = String.valueOf(i);
+            int colorResId = COLORS[(color + i) % COLORS.length];
+            TreeNode node = parent == null
+                    ? adapter.addRootNode(label, 0, colorResId, -1)
+                    : adapter.addChildNode(parent, label, 0, colorResId, -1);
+            double childScale = scale / Math.pow(i + 1, skew);
+            double nodeWeight;
+            if (level == depth) {
+                nodeWeight = childScale * (0.5 + random.nextDouble());
+                leaves[leafCount++] = node;
+            } else {
+                nodeWeight = generate(node, level + 1, width, depth, skew, childScale, color + i + 1);
+            }
+            node.setWeight(nodeWeight);
+            weight += nodeWeight;
+        }
+        return weight;
+    }
+
+    /**
+     * Scales random leaves up or down and their ancestors by as much
+     */
+    private void updateWeights() {
+        int changes = Math.max(1, leafCount / LEAF_FRACTION_DIVISOR);
+        for (int change = 0; change < changes; change++) {
+            TreeNode leaf = leaves[random.nextInt(leafCount)];
+            double delta = leaf.getWeight() * (random.nextDouble() - 0.5);
+            for (TreeNode node = leaf; node != null; node = node.getParent()) {
+                node.setWeight(node.getWeight() + delta);
+            }
+        }
+        adapter.notifyWeightsChanged();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.List;
+
+/**
+ * Label lookup over a list of sibling nodes.
+ * Small lists are scanned, larger ones get an open addressing table that is kept in sync
+ * with the list, so the tree itself can be used as a path trie.
+ * Lookups from a char range do not allocate.
+ */
+final class ChildIndex {
+
+    private static final int MIN_INDEXED_SIZE = 8;
+
+    private final List<TreeNode> nodes;
+    private TreeNode[] table;
+    private int indexedCount;
+
+    ChildIndex(List<TreeNode> nodes) {
+        this.nodes = nodes;
+        this.table = null;
+        this.indexedCount = 0;
+    }
+
+    /**
+     * Forgets the table, for when nodes were taken out of the list
+     */
+    void reset() {
+        table = null;
+        indexedCount = 0;
+    }
+
+    TreeNode find(String label) {
+        return find(label, null, 0, label.length(), label.hashCode());
+    }
+
+    TreeNode find(char[] chars, int offset, int length) {
+        return find(null, chars, offset, length, hash(chars, offset, length));
+    }
+
+    /**
+     * Looks up either a label string or a char range, whichever is non null.
+     */
+    private TreeNode find(String label, char[] chars, int offset, int length, int hash) {
+        int size = nodes.size();
+        if (size < MIN_INDEXED_SIZE) {
+            for (int i = 0; i < size; i++) {
+                TreeNode node = nodes.get(i);
+                if (matches(node.getLabel(), label, chars, offset, length)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+        sync(size);
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(table[slot].getLabel(), label, chars, offset, length)) {
+                return table[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Brings the table up to date with the list, nodes are mostly appended so only the tail
+     * is indexed, anything else triggers a full rebuild.
+     */
+    private void sync(int size) {
+        if (table != null && size == indexedCount) {
+            return;
+        }
+        if (table == null || size < indexedCount || size * 2 > table.length) {
+            int capacity = Integer.highestOneBit(Math.max(size * 4, 16) - 1) << 1;
+            table = new TreeNode[capacity];
+            indexedCount = 0;
+        }
+        for (int i = indexedCount; i < size; i++) {
+            insert(nodes.get(i));
+        }
+        indexedCount = size;
+    }
+
+    private void insert(TreeNode node) {
+        String label = node.getLabel();
+        if (label == null) {
+            return;
+        }
+        int mask = table.length - 1;
+        int slot = mix(label.hashCode()) & mask;
+        while (table[slot] != null) {
+            // Keep the first node with a given label, like the linear scan does
+            if (label.equals(table[slot].getLabel())) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = node;
+    }
+
+    static int hash(char[] chars, int offset, int length) {
+        // Same as String.hashCode() so that both lookups land on the same slots
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        return h * 0x45d9f3b;
+    }
+
+    private static boolean matches(String nodeLabel, String label, char[] chars, int offset, int length) {
+        if (nodeLabel == null || nodeLabel.length() != length) {
+            return false;
+        }
+        if (label != null) {
+            return nodeLabel.equals(label);
+        }
+        for (int i = 0; i < length; i++) {
+            if (nodeLabel.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * The wedges of the slices merged into one path per color, so that drawing them takes
+ * one call per color of the palette rather than one per slice.
+ * The paths are only merged again after the slices moved.
+ */
+final class ColorBatches {
+
+    private final SparseIntArray slots;
+    private Paint[] paints;
+    private Path[] paths;
+    private int size;
+    private boolean dirty;
+
+    ColorBatches() {
+        this.slots = new SparseIntArray();
+        this.paints = new Paint[8];
+        this.paths = new Path[8];
+        this.size = 0;
+        this.dirty = true;
+    }
+
+    /**
+     * The slices moved, they are merged again before the next draw
+     */
+    void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Forgets the palette, for when the slices are created again
+     */
+    void clear() {
+        slots.clear();
+        for (int i = 0; i < size; i++) {
+            paints[i] = null;
+            paths[i].reset();
+        }
+        size = 0;
+        dirty = true;
+    }
+
+    /**
+     * Drops the paths as well as the palette
+     */
+    void release() {
+        clear();
+        paints = new Paint[8];
+        paths = new Path[8];
+    }
+
+    int getPaletteSize() {
+        return size;
+    }
+
+    void draw(Canvas canvas, DrawableTreeNode[] drawableTreeNodes, int[] order, int count) {
+        if (dirty) {
+            merge(drawableTreeNodes, order, count);
+            dirty = false;
+        }
+        for (int i = 0; i < size; i++) {
+            canvas.drawPath(paths[i], paints[i]);
+        }
+    }
+
+    private void merge(DrawableTreeNode[] drawableTreeNodes, int[] order, int count) {
+        for (int i = 0; i < size; i++) {
+            paths[i].rewind();
+        }
+        for (int k = 0; k < count; k++) {
+            DrawableTreeNode drawableTreeNode = drawableTreeNodes[order[k]];
+            if (drawableTreeNode == null || !drawableTreeNode.hasWeight()) {
+                continue;
+            }
+            drawableTreeNode.updateGeometry();
+            paths[slotOf(drawableTreeNode)].addPath(drawableTreeNode.backgroundPath);
+        }
+    }
+
+    private int slotOf(DrawableTreeNode drawableTreeNode) {
+        // The paints come from the slice cache, there is one per color resource
+        int colorResId = drawableTreeNode.getNode().getColorResId();
+        int slot = slots.get(colorResId, -1);
+        if (slot == -1) {
+            if (size == paints.length) {
+                paints = Arrays.copyOf(paints, size * 2);
+                paths = Arrays.copyOf(paths, size * 2);
+            }
+            if (paths[size] == null) {
+                paths[size] = new Path();
+            }
+            paints[size] = drawableTreeNode.getBackgroundPaint();
+            slot = size++;
+            slots.put(colorResId, slot);
+        }
+        return slot;
+    }
+}
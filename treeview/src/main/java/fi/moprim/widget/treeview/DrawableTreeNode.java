@@ -20,6 +20,7 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.view.View;
@@ -30,17 +31,41 @@ import android.view.View;
  */
 abstract class DrawableTreeNode extends View {
 
+    static final int STATE_PRESSED = 1;
+    static final int STATE_SELECTED = 1 << 1;
+    static final int STATE_HIGHLIGHTED = 1 << 2;
+    static final int STATE_MATCHED = 1 << 3;
+    static final int STATE_MATCH_PATH = 1 << 4;
+
+    // Same values as the label_mode attribute
+    static final int LABEL_NONE = 0;
+    static final int LABEL_INSIDE = 1;
+    static final int LABEL_ALONG = 2;
+
     private final TreeNode node;
     protected Path backgroundPath;
     protected PointF middlePoint;
     protected float length;
+    // Room across the slice, from the inner to the outer edge
+    protected float thickness;
+    protected final RectF bounds;
     private float start;
     private float sweep;
+    private boolean geometryDirty;
+    private int sliceState;
     private Paint backgroundPaint;
     private Bitmap iconBitmap;
     private int iconSize;
+    private int iconCell;
     private Rect src;
     private Rect dst;
+    protected String label;
+    protected float labelWidth;
+    protected float labelHeight;
+    protected float labelBaseline;
+    protected Paint labelPaint;
+    protected int labelMode;
+    protected Path labelPath;
 
     DrawableTreeNode(Context context, TreeNode node,
                      float start, float sweep, Paint backgroundPaint,
@@ -51,11 +76,17 @@ abstract class DrawableTreeNode extends View {
         this.backgroundPaint = backgroundPaint;
         this.middlePoint = new PointF(0f, 0f);
         this.length = 0f;
+        this.thickness = 0f;
         this.iconBitmap = iconBitmap;
         this.iconSize = Math.round(iconSize);
+        this.iconCell = -1;
         this.backgroundPath = new Path();
+        this.bounds = new RectF();
+        this.geometryDirty = true;
+        this.sliceState = 0;
         this.src = new Rect();
         this.dst = new Rect();
+        this.labelMode = LABEL_NONE;
         this.node = node;
     }
 
@@ -94,36 +125,181 @@ abstract class DrawableTreeNode extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (this.node.getWeight() <= 0.00001) {
+        drawSlice(canvas);
+    }
+
+    /**
+     * Draws the slice directly, without going through {@link View#draw(Canvas)}: the slices are never attached
+     */
+    void drawSlice(Canvas canvas) {
+        if (!hasWeight()) {
             return;
         }
-        setBackgroundPath();
-        setMiddlePointAndLength();
-        if (backgroundPath != null) {
-            canvas.drawPath(backgroundPath, this.backgroundPaint);
-            // Now draw the icon if present and enough size
-            if (this.iconBitmap != null && this.iconSize < this.length) {
-                this.src.set(0, 0, iconBitmap.getWidth() - 1, iconBitmap.getHeight() - 1);
-                this.dst.set(
-                        (int) (this.middlePoint.x - this.iconSize / 2),
-                        (int) (this.middlePoint.y - this.iconSize / 2),
-                        (int) (this.middlePoint.x + this.iconSize / 2),
-                        (int) (this.middlePoint.y + this.iconSize / 2));
-                canvas.drawBitmap(this.iconBitmap, src, dst, null);
-            }
+        drawWedge(canvas);
+        // A label that fits is drawn instead of the icon
+        if (!drawLabelIfFits(canvas) && showsIcon()) {
+            drawIcon(canvas);
         }
     }
 
+    void drawWedge(Canvas canvas) {
+        updateGeometry();
+        canvas.drawPath(backgroundPath, this.backgroundPaint);
+    }
+
+    boolean drawLabelIfFits(Canvas canvas) {
+        updateGeometry();
+        return this.labelMode != LABEL_NONE && drawLabel(canvas);
+    }
+
+    /**
+     * @return true if the slice has an icon, enough size for it both along and across, and no label drawn instead
+     */
+    boolean showsIcon() {
+        updateGeometry();
+        return this.iconBitmap != null && this.iconSize < this.length && this.iconSize <= this.thickness
+                && (this.labelMode == LABEL_NONE || !labelFits());
+    }
+
+    void drawIcon(Canvas canvas) {
+        this.src.set(0, 0, iconBitmap.getWidth() - 1, iconBitmap.getHeight() - 1);
+        drawIcon(canvas, iconBitmap, src);
+    }
+
+    /**
+     * Draws the icon centered on the slice
+     *
+     * @param source the icon itself, or a bitmap holding it within src
+     */
+    void drawIcon(Canvas canvas, Bitmap source, Rect src) {
+        this.dst.set(
+                (int) (this.middlePoint.x - this.iconSize / 2),
+                (int) (this.middlePoint.y - this.iconSize / 2),
+                (int) (this.middlePoint.x + this.iconSize / 2),
+                (int) (this.middlePoint.y + this.iconSize / 2));
+        canvas.drawBitmap(source, src, dst, null);
+    }
+
+    boolean hasWeight() {
+        return this.node.getWeight() > 0.00001;
+    }
+
+    /**
+     * Rebuilds the path, middle point and bounds, only when the start or sweep changed since the last call
+     */
+    void updateGeometry() {
+        if (geometryDirty) {
+            setBackgroundPath();
+            setMiddlePointAndLength();
+            backgroundPath.computeBounds(bounds, true);
+            geometryDirty = false;
+        }
+    }
+
+    /**
+     * The path is rebuilt on the next call to {@link #updateGeometry()}, for when the rings moved
+     */
+    void invalidateGeometry() {
+        this.geometryDirty = true;
+    }
+
+    /**
+     * @param labelWidth the width of the label measured with the paint, it is never measured again
+     */
+    void setLabel(String label, float labelWidth, Paint labelPaint, int labelMode) {
+        this.label = label;
+        this.labelWidth = labelWidth;
+        this.labelPaint = labelPaint;
+        this.labelMode = label == null ? LABEL_NONE : labelMode;
+        this.labelHeight = labelPaint.descent() - labelPaint.ascent();
+        // Offset of the baseline that centers the text vertically
+        this.labelBaseline = -(labelPaint.ascent() + labelPaint.descent()) / 2;
+        if (this.labelMode == LABEL_ALONG && labelPath == null) {
+            this.labelPath = new Path();
+        }
+        this.geometryDirty = true;
+    }
+
+    int getColor() {
+        return backgroundPaint.getColor();
+    }
+
+    /**
+     * The paint is shared with the other slices of the same color, it must not be modified
+     */
+    Paint getBackgroundPaint() {
+        return backgroundPaint;
+    }
+
+    Bitmap getIconBitmap() {
+        return iconBitmap;
+    }
+
+    /**
+     * @param iconBitmap the icon, null to draw the slice without one
+     */
+    void setIconBitmap(Bitmap iconBitmap) {
+        this.iconBitmap = iconBitmap;
+        this.iconCell = -1;
+    }
+
+    int getIconCell() {
+        return iconCell;
+    }
+
+    /**
+     * @param iconCell the cell of the icon in the {@link IconAtlas}, -1 for none
+     */
+    void setIconCell(int iconCell) {
+        this.iconCell = iconCell;
+    }
+
+    RectF getBounds() {
+        return bounds;
+    }
+
+    int getSliceState() {
+        return sliceState;
+    }
+
+    void clearSliceState() {
+        sliceState = 0;
+    }
+
+    /**
+     * @return true if the state changed
+     */
+    boolean setSliceState(int flag, boolean enabled) {
+        int state = enabled ? sliceState | flag : sliceState & ~flag;
+        if (state == sliceState) {
+            return false;
+        }
+        sliceState = state;
+        return true;
+    }
+
     abstract void setBackgroundPath();
 
     abstract void setMiddlePointAndLength();
 
+    /**
+     * Draws the label within the slice.
+     *
+     * @return false if the label does not fit, nothing is drawn then
+     */
+    abstract boolean drawLabel(Canvas canvas);
+
+    abstract boolean labelFits();
+
     public float getStart() {
         return start;
     }
 
     public void setStart(float start) {
-        this.start = start;
+        if (this.start != start) {
+            this.start = start;
+            this.geometryDirty = true;
+        }
     }
 
     public float getSweep() {
@@ -131,7 +307,10 @@ abstract class DrawableTreeNode extends View {
     }
 
     public void setSweep(float sweep) {
-        this.sweep = sweep;
+        if (this.sweep != sweep) {
+            this.sweep = sweep;
+            this.geometryDirty = true;
+        }
     }
 
 }
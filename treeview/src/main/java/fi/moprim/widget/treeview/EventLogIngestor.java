@@ -0,0 +1,690 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Tails an append-only log of weight changes, one {@code path,delta,timestamp} record per UTF-8 line,
+ * and adds the deltas to a {@link TreeAdapter}.
+ * <p>
+ * A background thread reads the file through a fixed size buffer and parses the records into one of
+ * two batches, without allocating per record. Batches are applied on the main thread, where the paths
+ * are resolved through a cache of the paths already seen, and the adapter is notified once per batch.
+ * The reader waits for the main thread when both batches are full.
+ */
+public class EventLogIngestor {
+
+    private static final String TAG = "EventLogIngestor";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_RECORDS = 4096;
+    private static final int BATCH_CHARS = 256 * 1024;
+
+    private final TreeAdapter adapter;
+    private final File file;
+    private final int colorResId;
+    private final int iconResId;
+    private final Executor mainThread;
+    private final PathCache pathCache;
+    private TreeImporter.NodeStyler nodeStyler;
+    private char pathSeparator;
+    private char fieldSeparator;
+    private boolean rollUp;
+    private boolean fromStart;
+    // Guarded by the ingestor, isRunning reads it without the lock
+    private volatile TailReader reader;
+    private Thread thread;
+
+    // Main thread only
+    private int cacheStructureVersion;
+
+    private volatile long appliedCount;
+    private volatile long malformedCount;
+    private volatile long unresolvedCount;
+    private volatile long lastTimestamp;
+    private volatile long lastApplyMillis;
+    private volatile double recordsPerSecond;
+    private volatile long pendingBytes;
+
+    public EventLogIngestor(TreeAdapter adapter, File file, int colorResId, int iconResId) {
+        this(adapter, file, colorResId, iconResId, new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        });
+    }
+
+    /**
+     * @param mainThread runs the batches, on the thread that owns the adapter
+     */
+    EventLogIngestor(TreeAdapter adapter, File file, int colorResId, int iconResId, Executor mainThread) {
+        this.adapter = adapter;
+        this.file = file;
+        this.colorResId = colorResId;
+        this.iconResId = iconResId;
+        this.mainThread = mainThread;
+        this.pathCache = new PathCache();
+        this.nodeStyler = null;
+        this.pathSeparator = '/';
+        this.fieldSeparator = ',';
+        this.rollUp = true;
+        this.fromStart = false;
+    }
+
+    /**
+     * Gives the colors and icons of the created nodes, instead of the ones given in the constructor
+     */
+    public EventLogIngestor setNodeStyler(TreeImporter.NodeStyler nodeStyler) {
+        this.nodeStyler = nodeStyler;
+        return this;
+    }
+
+    public EventLogIngestor setPathSeparator(char pathSeparator) {
+        this.pathSeparator = pathSeparator;
+        return this;
+    }
+
+    public EventLogIngestor setFieldSeparator(char fieldSeparator) {
+        this.fieldSeparator = fieldSeparator;
+        return this;
+    }
+
+    /**
+     * When rolling up (the default), a delta is added to every node along its path,
+     * otherwise only to the last node.
+     */
+    public EventLogIngestor setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+        return this;
+    }
+
+    /**
+     * Reads the records already in the file when starting, by default only the records appended afterwards are
+     */
+    public EventLogIngestor setFromStart(boolean fromStart) {
+        this.fromStart = fromStart;
+        return this;
+    }
+
+    /**
+     * Starts tailing the file, it is read again every poll interval once everything has been read
+     */
+    public synchronized void start(final long pollIntervalMillis) {
+        if (reader != null) {
+            return;
+        }
+        reader = new TailReader();
+        final TailReader started = reader;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tail(started, pollIntervalMillis);
+            }
+        }, "EventLogIngestor");
+        thread.start();
+    }
+
+    /**
+     * Stops reading, the records already read are still applied.
+     * A reader still finishing its last read has its own state, it can be started again right away.
+     */
+    public void stop() {
+        TailReader stopped;
+        Thread stoppedThread;
+        synchronized (this) {
+            stopped = reader;
+            stoppedThread = thread;
+            reader = null;
+            thread = null;
+            if (stopped != null) {
+                stopped.stopped = true;
+            }
+            notifyAll();
+        }
+        if (stoppedThread != null) {
+            stoppedThread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return reader != null;
+    }
+
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    /**
+     * @return the number of malformed records, and of records with an empty path
+     */
+    public long getSkippedCount() {
+        return malformedCount + unresolvedCount;
+    }
+
+    /**
+     * @return how far behind the records are when applied: the time since the timestamp of the last applied record
+     */
+    public long getLagMillis() {
+        return lastTimestamp == 0 ? 0 : Math.max(0, System.currentTimeMillis() - lastTimestamp);
+    }
+
+    /**
+     * @return the bytes of the file not read yet when it was last read
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the records applied per second, averaged over the recent batches
+     */
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    private void tail(TailReader tailed, long pollIntervalMillis) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            while (!tailed.stopped) {
+                if (!tailed.read(channel) && !tailed.stopped) {
+                    Thread.sleep(pollIntervalMillis);
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            // Stopped while reading
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            synchronized (this) {
+                if (reader == tailed) {
+                    reader = null;
+                    thread = null;
+                }
+            }
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the file on the reader thread. There is one per start, so that a stopped reader never shares
+     * its buffers and batches with the next one
+     */
+    final class TailReader {
+
+        private final Batch[] batches;
+        private byte[] buffer;
+        private ByteBuffer byteBuffer;
+        private char[] line;
+        // -1 until the file is first read
+        private long position;
+        private int batchIndex;
+        private int start;
+        private int end;
+        // Set with the ingestor lock held, so that a reader waiting for a batch is woken up
+        private volatile boolean stopped;
+
+        TailReader() {
+            this.batches = new Batch[]{new Batch(), new Batch()};
+            this.buffer = new byte[BUFFER_SIZE];
+            this.byteBuffer = ByteBuffer.wrap(buffer);
+            this.line = new char[256];
+            this.position = fromStart ? 0 : -1;
+        }
+
+        /**
+         * Reads what was appended since the last call and parses the complete lines.
+         * The batch is handed over when it is full, and once everything in the file has been read.
+         *
+         * @return false if nothing was read
+         */
+        boolean read(FileChannel channel) throws IOException, InterruptedException {
+            if (position < 0) {
+                position = channel.size();
+            }
+            if (channel.size() < position) {
+                // The log was truncated or rotated, start over
+                position = 0;
+                start = 0;
+                end = 0;
+            }
+            byteBuffer.limit(buffer.length).position(end);
+            int read = channel.read(byteBuffer, position);
+            if (read > 0) {
+                position += read;
+                end += read;
+            }
+            pendingBytes = Math.max(0, channel.size() - position);
+            int scan = start;
+            while (scan < end) {
+                if (buffer[scan] == '\n') {
+                    if (!parseRecord(this, start, scan, batches[batchIndex])) {
+                        // The batch is full, hand it over and parse into the other one
+                        if (!publish()) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    start = scan + 1;
+                }
+                scan++;
+            }
+            // Keep the incomplete record for the next read
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                // A single record does not fit in the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                byteBuffer = ByteBuffer.wrap(buffer);
+            }
+            if ((read <= 0 || pendingBytes == 0) && batches[batchIndex].count > 0 && !publish()) {
+                return false;
+            }
+            return read > 0;
+        }
+
+        /**
+         * Hands the batch to the main thread and waits for the other one to be applied
+         *
+         * @return false when stopped
+         */
+        private boolean publish() throws InterruptedException {
+            Batch batch = batches[batchIndex];
+            synchronized (EventLogIngestor.this) {
+                batch.pending = true;
+            }
+            mainThread.execute(batch);
+            Batch other = batches[1 - batchIndex];
+            synchronized (EventLogIngestor.this) {
+                while (other.pending && !stopped) {
+                    EventLogIngestor.this.wait();
+                }
+            }
+            batchIndex = 1 - batchIndex;
+            return !stopped;
+        }
+    }
+
+    /**
+     * Parses the line into the batch, malformed lines are counted and dropped
+     *
+     * @return false if the batch is full, nothing is parsed then
+     */
+    private boolean parseRecord(TailReader reader, int from, int to, Batch batch) {
+        int length = decode(reader, from, to);
+        char[] line = reader.line;
+        while (length > 0 && line[length - 1] <= ' ') {
+            length--;
+        }
+        int begin = 0;
+        while (begin < length && line[begin] <= ' ') {
+            begin++;
+        }
+        if (begin == length) {
+            return true;
+        }
+        // The timestamp and the delta are the last fields, so that separators can be used in the labels
+        int timestampSeparator = lastIndexOf(line, fieldSeparator, begin, length);
+        int deltaSeparator = timestampSeparator < 0 ? -1 : lastIndexOf(line, fieldSeparator, begin, timestampSeparator);
+        if (deltaSeparator < 0) {
+            malformedCount++;
+            return true;
+        }
+        double delta = TreeImporter.parseNumber(line, trimStart(line, deltaSeparator + 1, timestampSeparator),
+                trimEnd(line, deltaSeparator + 1, timestampSeparator));
+        long timestamp = parseLong(line, trimStart(line, timestampSeparator + 1, length), length);
+        int pathEnd = trimEnd(line, begin, deltaSeparator);
+        if (Double.isNaN(delta) || Double.isInfinite(delta) || timestamp < 0 || pathEnd == begin) {
+            malformedCount++;
+            return true;
+        }
+        return batch.add(line, begin, pathEnd, delta, timestamp);
+    }
+
+    /**
+     * Decodes the UTF-8 bytes of a line into the line buffer
+     *
+     * @return the number of chars
+     */
+    private static int decode(TailReader reader, int from, int to) {
+        if (reader.line.length < to - from) {
+            reader.line = new char[Math.max(to - from, reader.line.length * 2)];
+        }
+        byte[] buffer = reader.buffer;
+        char[] line = reader.line;
+        int length = 0;
+        int i = from;
+        while (i < to) {
+            int b = buffer[i++];
+            if (b >= 0) {
+                line[length++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0 && i < to) {
+                line[length++] = (char) (((b & 0x1f) << 6) | (buffer[i++] & 0x3f));
+            } else if ((b & 0xf0) == 0xe0 && i + 1 < to) {
+                line[length++] = (char) (((b & 0x0f) << 12) | ((buffer[i] & 0x3f) << 6) | (buffer[i + 1] & 0x3f));
+                i += 2;
+            } else if ((b & 0xf8) == 0xf0 && i + 2 < to) {
+                int codePoint = ((b & 0x07) << 18) | ((buffer[i] & 0x3f) << 12)
+                        | ((buffer[i + 1] & 0x3f) << 6) | (buffer[i + 2] & 0x3f);
+                i += 3;
+                line[length++] = Character.highSurrogate(codePoint);
+                line[length++] = Character.lowSurrogate(codePoint);
+            } else {
+                line[length++] = '\ufffd';
+            }
+        }
+        return length;
+    }
+
+    private static int lastIndexOf(char[] line, char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimStart(char[] line, int from, int to) {
+        while (from < to && line[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(char[] line, int from, int to) {
+        while (to > from && line[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * @return the number, or -1 if it is not a positive integer
+     */
+    private static long parseLong(char[] line, int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Main thread: adds the deltas of the batch and notifies the adapter once
+     */
+    private void apply(Batch batch) {
+        if (cacheStructureVersion != adapter.getStructureVersion()) {
+            // Nodes may have been moved or removed since they were cached
+            pathCache.clear();
+        }
+        boolean created = false;
+        int applied = 0;
+        long lastRecordTimestamp = 0;
+        for (int r = 0; r < batch.count; r++) {
+            TreeNode[] nodes = pathCache.get(batch.chars, batch.pathStart[r], batch.pathEnd[r]);
+            if (nodes == null) {
+                int before = adapter.getStructureVersion();
+                nodes = resolve(batch.chars, batch.pathStart[r], batch.pathEnd[r]);
+                created |= before != adapter.getStructureVersion();
+                if (nodes == null) {
+                    unresolvedCount++;
+                    continue;
+                }
+                pathCache.put(batch.chars, batch.pathStart[r], batch.pathEnd[r], nodes);
+            }
+            double delta = batch.delta[r];
+            long timestamp = batch.timestamp[r];
+            if (rollUp) {
+                for (TreeNode node : nodes) {
+                    adapter.addWeight(node, delta, timestamp);
+                }
+            } else {
+                adapter.addWeight(nodes[nodes.length - 1], delta, timestamp);
+            }
+            lastRecordTimestamp = timestamp;
+            applied++;
+        }
+        long now = System.currentTimeMillis();
+        cacheStructureVersion = adapter.getStructureVersion();
+        appliedCount += applied;
+        if (lastRecordTimestamp != 0) {
+            lastTimestamp = lastRecordTimestamp;
+        }
+        if (lastApplyMillis != 0 && now > lastApplyMillis) {
+            // Smoothed over the last few batches
+            double rate = applied * 1000.0 / (now - lastApplyMillis);
+            recordsPerSecond = recordsPerSecond == 0 ? rate : 0.8 * recordsPerSecond + 0.2 * rate;
+        }
+        lastApplyMillis = now;
+        if (created) {
+            adapter.notifyDataSetChanged();
+        } else if (applied > 0) {
+            adapter.notifyWeightsChanged();
+        }
+    }
+
+    /**
+     * Finds the nodes along the path, creating the missing ones
+     *
+     * @return the nodes from the root, or null for an empty path
+     */
+    private TreeNode[] resolve(char[] chars, int from, int to) {
+        int depth = 0;
+        int segmentStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || chars[i] == pathSeparator) {
+                if (i > segmentStart) {
+                    depth++;
+                }
+                segmentStart = i + 1;
+            }
+        }
+        if (depth == 0) {
+            return null;
+        }
+        TreeNode[] nodes = new TreeNode[depth];
+        TreeNode node = null;
+        depth = 0;
+        segmentStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || chars[i] == pathSeparator) {
+                if (i > segmentStart) {
+                    node = resolve(node, chars, segmentStart, i - segmentStart);
+                    nodes[depth++] = node;
+                }
+                segmentStart = i + 1;
+            }
+        }
+        return nodes;
+    }
+
+    private TreeNode resolve(TreeNode parent, char[] chars, int offset, int length) {
+        TreeNode node = parent == null
+                ? adapter.findRootNode(chars, offset, length)
+                : parent.findChild(chars, offset, length);
+        if (node == null) {
+            String label = new String(chars, offset, length);
+            int color = nodeStyler == null ? colorResId : nodeStyler.getColorResId(parent, label);
+            int icon = nodeStyler == null ? iconResId : nodeStyler.getIconResId(parent, label);
+            node = parent == null
+                    ? adapter.addRootNode(label, 0, color, icon)
+                    : adapter.addChildNode(parent, label, 0, color, icon);
+        }
+        return node;
+    }
+
+    /**
+     * Records parsed by the reader thread, with their paths in one char array
+     */
+    private final class Batch implements Runnable {
+
+        private final char[] chars = new char[BATCH_CHARS];
+        private final int[] pathStart = new int[BATCH_RECORDS];
+        private final int[] pathEnd = new int[BATCH_RECORDS];
+        private final double[] delta = new double[BATCH_RECORDS];
+        private final long[] timestamp = new long[BATCH_RECORDS];
+        private int count;
+        private int charCount;
+        // Guarded by the ingestor
+        private boolean pending;
+
+        boolean add(char[] path, int from, int to, double recordDelta, long recordTimestamp) {
+            int length = to - from;
+            if (count == BATCH_RECORDS || charCount + length > chars.length) {
+                if (count == 0) {
+                    // Longer than a whole batch, it can never be applied
+                    malformedCount++;
+                    return true;
+                }
+                return false;
+            }
+            System.arraycopy(path, from, chars, charCount, length);
+            pathStart[count] = charCount;
+            pathEnd[count] = charCount + length;
+            delta[count] = recordDelta;
+            timestamp[count] = recordTimestamp;
+            charCount += length;
+            count++;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                apply(this);
+            } finally {
+                count = 0;
+                charCount = 0;
+                synchronized (EventLogIngestor.this) {
+                    pending = false;
+                    EventLogIngestor.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The nodes along the paths already seen, so that a known path is resolved with one lookup
+     * and without walking up the tree. Paths are copied once, when they are first seen.
+     */
+    private static final class PathCache {
+
+        private char[][] paths = new char[256][];
+        private TreeNode[][] nodes = new TreeNode[256][];
+        private int[] hashes = new int[256];
+        private int size;
+
+        TreeNode[] get(char[] chars, int from, int to) {
+            int hash = ChildIndex.hash(chars, from, to - from);
+            int mask = paths.length - 1;
+            for (int slot = mix(hash) & mask; paths[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && matches(paths[slot], chars, from, to)) {
+                    return nodes[slot];
+                }
+            }
+            return null;
+        }
+
+        void put(char[] chars, int from, int to, TreeNode[] pathNodes) {
+            if (size * 2 >= paths.length) {
+                grow();
+            }
+            int hash = ChildIndex.hash(chars, from, to - from);
+            insert(Arrays.copyOfRange(chars, from, to), hash, pathNodes);
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(paths, null);
+            Arrays.fill(nodes, null);
+            size = 0;
+        }
+
+        private void insert(char[] path, int hash, TreeNode[] pathNodes) {
+            int mask = paths.length - 1;
+            int slot = mix(hash) & mask;
+            while (paths[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            paths[slot] = path;
+            nodes[slot] = pathNodes;
+            hashes[slot] = hash;
+        }
+
+        private void grow() {
+            char[][] oldPaths = paths;
+            TreeNode[][] oldNodes = nodes;
+            int[] oldHashes = hashes;
+            paths = new char[oldPaths.length * 2][];
+            nodes = new TreeNode[oldPaths.length * 2][];
+            hashes = new int[oldPaths.length * 2];
+            for (int i = 0; i < oldPaths.length; i++) {
+                if (oldPaths[i] != null) {
+                    insert(oldPaths[i], oldHashes[i], oldNodes[i]);
+                }
+            }
+        }
+
+        private static boolean matches(char[] path, char[] chars, int from, int to) {
+            if (path.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < path.length; i++) {
+                if (path[i] != chars[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int h) {
+            h ^= (h >>> 16);
+            return h * 0x45d9f3b;
+        }
+    }
+}
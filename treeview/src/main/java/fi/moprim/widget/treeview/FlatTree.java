@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.Arrays;
+
+/**
+ * The shape of a tree in primitive arrays, nodes are linked to their parent,
+ * first and last child and next sibling by index. -1 means no link.
+ * Root nodes are chained as siblings starting at {@link #firstRoot}.
+ */
+class FlatTree {
+
+    static final int NONE = -1;
+    // Parent of a node taken out of the tree, never reached from the roots
+    static final int REMOVED = -2;
+
+    int size;
+    int firstRoot;
+    int lastRoot;
+    int[] parent;
+    int[] firstChild;
+    int[] lastChild;
+    int[] nextSibling;
+    int[] depth;
+    double[] weight;
+
+    FlatTree(int capacity) {
+        capacity = Math.max(capacity, 16);
+        this.parent = new int[capacity];
+        this.firstChild = new int[capacity];
+        this.lastChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.depth = new int[capacity];
+        this.weight = new double[capacity];
+        clear();
+    }
+
+    void clear() {
+        size = 0;
+        firstRoot = NONE;
+        lastRoot = NONE;
+    }
+
+    int capacity() {
+        return parent.length;
+    }
+
+    /**
+     * Appends a node as the last child of the parent, or as the last root node.
+     *
+     * @return the index of the new node
+     */
+    int append(int parentIndex, double nodeWeight) {
+        int index = allocate();
+        firstChild[index] = NONE;
+        lastChild[index] = NONE;
+        weight[index] = nodeWeight;
+        link(index, parentIndex);
+        depth[index] = parentIndex == NONE ? 1 : depth[parentIndex] + 1;
+        return index;
+    }
+
+    /**
+     * @return an index for a new node, after all the others
+     */
+    int allocate() {
+        if (size == capacity()) {
+            grow(size * 2);
+        }
+        return size++;
+    }
+
+    /**
+     * Links the node as the last child of the parent, or as the last root node
+     */
+    void link(int index, int parentIndex) {
+        parent[index] = parentIndex;
+        nextSibling[index] = NONE;
+        if (parentIndex == NONE) {
+            if (lastRoot == NONE) {
+                firstRoot = index;
+            } else {
+                nextSibling[lastRoot] = index;
+            }
+            lastRoot = index;
+        } else {
+            if (lastChild[parentIndex] == NONE) {
+                firstChild[parentIndex] = index;
+            } else {
+                nextSibling[lastChild[parentIndex]] = index;
+            }
+            lastChild[parentIndex] = index;
+        }
+    }
+
+    /**
+     * Takes the node out of its siblings, its own subtree is untouched
+     */
+    void unlink(int index) {
+        int parentIndex = parent[index];
+        int previous = NONE;
+        for (int i = firstOf(parentIndex); i != index; i = nextSibling[i]) {
+            previous = i;
+        }
+        if (previous == NONE) {
+            if (parentIndex == NONE) {
+                firstRoot = nextSibling[index];
+            } else {
+                firstChild[parentIndex] = nextSibling[index];
+            }
+        } else {
+            nextSibling[previous] = nextSibling[index];
+        }
+        if (nextSibling[index] == NONE) {
+            if (parentIndex == NONE) {
+                lastRoot = previous;
+            } else {
+                lastChild[parentIndex] = previous;
+            }
+        }
+        nextSibling[index] = NONE;
+        parent[index] = REMOVED;
+    }
+
+    /**
+     * Sets the depth of the node and its descendants from the depth of its parent, without recursion
+     */
+    void updateDepths(int index) {
+        depth[index] = parent[index] < 0 ? 1 : depth[parent[index]] + 1;
+        int i = firstChild[index];
+        while (i != NONE) {
+            depth[i] = depth[parent[i]] + 1;
+            if (firstChild[i] != NONE) {
+                i = firstChild[i];
+                continue;
+            }
+            while (i != index && nextSibling[i] == NONE) {
+                i = parent[i];
+            }
+            i = i == index ? NONE : nextSibling[i];
+        }
+    }
+
+    void grow(int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        weight = Arrays.copyOf(weight, capacity);
+    }
+
+    int firstOf(int parentIndex) {
+        return parentIndex == NONE ? firstRoot : firstChild[parentIndex];
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.Arrays;
+
+/**
+ * Finds the slice under an angle on a given ring.
+ * The visible slices are bucketed by depth and sorted by start angle,
+ * so that a lookup is a binary search within one ring.
+ */
+final class HitTestIndex {
+
+    private int[] depthOffsets;
+    private long[] keys;
+    private float[] starts;
+    private float[] ends;
+    private int[] indexes;
+    private int maxDepth;
+    private int count;
+
+    HitTestIndex() {
+        this.depthOffsets = new int[2];
+        this.keys = new long[0];
+        this.starts = new float[0];
+        this.ends = new float[0];
+        this.indexes = new int[0];
+        this.maxDepth = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Drops the buffers, they grow again on the next build
+     */
+    void release() {
+        depthOffsets = new int[2];
+        keys = new long[0];
+        starts = new float[0];
+        ends = new float[0];
+        indexes = new int[0];
+        maxDepth = 0;
+        count = 0;
+    }
+
+    /**
+     * @param drawableTreeNodes the slices, indexed like the layout
+     */
+    void build(DrawableTreeNode[] drawableTreeNodes) {
+        maxDepth = 0;
+        count = 0;
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (isVisible(drawableTreeNode)) {
+                maxDepth = Math.max(maxDepth, drawableTreeNode.getNode().getDepth());
+                count++;
+            }
+        }
+        if (depthOffsets.length < maxDepth + 2) {
+            depthOffsets = new int[maxDepth + 2];
+        }
+        if (keys.length < count) {
+            keys = new long[count];
+            starts = new float[count];
+            ends = new float[count];
+            indexes = new int[count];
+        }
+        // Count the slices of each ring, then place them in their ring
+        Arrays.fill(depthOffsets, 0);
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (isVisible(drawableTreeNode)) {
+                depthOffsets[drawableTreeNode.getNode().getDepth() + 1]++;
+            }
+        }
+        for (int depth = 1; depth < depthOffsets.length; depth++) {
+            depthOffsets[depth] += depthOffsets[depth - 1];
+        }
+        for (int index = 0; index < drawableTreeNodes.length; index++) {
+            DrawableTreeNode drawableTreeNode = drawableTreeNodes[index];
+            if (isVisible(drawableTreeNode)) {
+                int depth = drawableTreeNode.getNode().getDepth();
+                // Start angles are positive, so their bits sort like the floats do
+                long startBits = Float.floatToIntBits(Math.max(drawableTreeNode.getStart(), 0f));
+                keys[depthOffsets[depth]++] = (startBits << 32) | index;
+            }
+        }
+        // depthOffsets[depth] now points at the end of the ring, shift it back to its start
+        for (int depth = depthOffsets.length - 1; depth > 0; depth--) {
+            depthOffsets[depth] = depthOffsets[depth - 1];
+        }
+        depthOffsets[0] = 0;
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            Arrays.sort(keys, depthOffsets[depth], depthOffsets[depth + 1]);
+        }
+        for (int position = 0; position < count; position++) {
+            int index = (int) keys[position];
+            indexes[position] = index;
+            starts[position] = drawableTreeNodes[index].getStart();
+            ends[position] = starts[position] + drawableTreeNodes[index].getSweep();
+        }
+    }
+
+    /**
+     * @return the number of visible slices
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Visible slices are ordered ring by ring, then clockwise
+     *
+     * @return the layout index of the visible slice at that position
+     */
+    int getIndex(int position) {
+        return indexes[position];
+    }
+
+    private static boolean isVisible(DrawableTreeNode drawableTreeNode) {
+        return drawableTreeNode != null && drawableTreeNode.getSweep() > 0;
+    }
+
+    /**
+     * @param angle in degrees, in [0, 360)
+     * @return the layout index of the slice, or -1
+     */
+    int find(int depth, float angle) {
+        if (depth < 1 || depth > maxDepth) {
+            return -1;
+        }
+        int low = depthOffsets[depth];
+        int high = depthOffsets[depth + 1] - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= angle) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found >= 0 && angle <= ends[found]) {
+            return indexes[found];
+        }
+        return -1;
+    }
+}
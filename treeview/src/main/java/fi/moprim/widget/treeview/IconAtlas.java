@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The distinct icons of the slices scaled to the icon size and packed in a grid into one bitmap,
+ * so that all the icons of a frame are drawn from the same bitmap.
+ * The bitmap is only drawn again when the set of icons or the icon size changes.
+ */
+final class IconAtlas {
+
+    // Larger bitmaps may not fit in a texture, the icons are then drawn one by one
+    private static final int MAX_SIZE = 2048;
+    // Keeps the filtering of a cell from picking the pixels of its neighbours
+    private static final int PADDING = 1;
+
+    private final IdentityHashMap<Bitmap, Integer> cells;
+    private final ArrayList<Bitmap> icons;
+    private final ArrayList<Bitmap> previousIcons;
+    private final Paint scalePaint;
+    private final Rect src;
+    private final Rect dst;
+    private Bitmap atlas;
+    private int cellSize;
+    private int columns;
+
+    IconAtlas() {
+        this.cells = new IdentityHashMap<>();
+        this.icons = new ArrayList<>();
+        this.previousIcons = new ArrayList<>();
+        this.scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        this.src = new Rect();
+        this.dst = new Rect();
+    }
+
+    /**
+     * Assigns the slices their cell, the bitmap is drawn again only if the icons or their size changed
+     */
+    void update(DrawableTreeNode[] drawableTreeNodes, int iconSize) {
+        previousIcons.clear();
+        previousIcons.addAll(icons);
+        icons.clear();
+        cells.clear();
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (drawableTreeNode == null) {
+                continue;
+            }
+            Bitmap icon = drawableTreeNode.getIconBitmap();
+            int cell = -1;
+            if (icon != null) {
+                Integer known = cells.get(icon);
+                if (known == null) {
+                    known = icons.size();
+                    cells.put(icon, known);
+                    icons.add(icon);
+                }
+                cell = known;
+            }
+            drawableTreeNode.setIconCell(cell);
+        }
+        if (atlas != null && iconSize == cellSize && sameIcons()) {
+            return;
+        }
+        atlas = null;
+        cellSize = iconSize;
+        if (icons.isEmpty() || iconSize <= 0) {
+            return;
+        }
+        columns = (int) Math.ceil(Math.sqrt(icons.size()));
+        int rows = (icons.size() + columns - 1) / columns;
+        int stride = iconSize + 2 * PADDING;
+        if (columns * stride > MAX_SIZE || rows * stride > MAX_SIZE) {
+            return;
+        }
+        atlas = Bitmap.createBitmap(columns * stride, rows * stride, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(atlas);
+        for (int cell = 0; cell < icons.size(); cell++) {
+            Bitmap icon = icons.get(cell);
+            src.set(0, 0, icon.getWidth(), icon.getHeight());
+            setCellBounds(cell, dst);
+            canvas.drawBitmap(icon, src, dst, scalePaint);
+        }
+    }
+
+    /**
+     * Drops the bitmap and the icons it was drawn from, until the next update
+     */
+    void release() {
+        atlas = null;
+        cells.clear();
+        icons.clear();
+        previousIcons.clear();
+    }
+
+    /**
+     * @return false if the icons have to be drawn one by one
+     */
+    boolean isReady() {
+        return atlas != null;
+    }
+
+    /**
+     * Draws the icon of the slice from its cell
+     */
+    void draw(Canvas canvas, DrawableTreeNode drawableTreeNode) {
+        int cell = drawableTreeNode.getIconCell();
+        if (cell != -1) {
+            setCellBounds(cell, src);
+            drawableTreeNode.drawIcon(canvas, atlas, src);
+        }
+    }
+
+    private void setCellBounds(int cell, Rect bounds) {
+        int stride = cellSize + 2 * PADDING;
+        int left = (cell % columns) * stride + PADDING;
+        int top = (cell / columns) * stride + PADDING;
+        bounds.set(left, top, left + cellSize, top + cellSize);
+    }
+
+    private boolean sameIcons() {
+        if (icons.size() != previousIcons.size()) {
+            return false;
+        }
+        for (int i = 0; i < icons.size(); i++) {
+            if (icons.get(i) != previousIcons.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
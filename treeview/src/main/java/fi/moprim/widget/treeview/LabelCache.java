@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Paint;
+
+import java.util.HashMap;
+
+/**
+ * Text widths of the node labels, per label and text size.
+ * Labels are measured once, slices keep the width so that nothing is measured while drawing.
+ */
+final class LabelCache {
+
+    // A label is rarely drawn with more than a couple of sizes
+    private static final int MAX_SIZES_PER_LABEL = 4;
+
+    // For every label: text size and width pairs
+    private final HashMap<String, float[]> widths;
+
+    LabelCache() {
+        this.widths = new HashMap<>();
+    }
+
+    float measure(String label, Paint paint) {
+        float textSize = paint.getTextSize();
+        float[] entry = widths.get(label);
+        if (entry == null) {
+            entry = new float[2 * MAX_SIZES_PER_LABEL];
+            widths.put(label, entry);
+        }
+        int pair = 0;
+        while (pair < MAX_SIZES_PER_LABEL && entry[2 * pair] != 0) {
+            if (entry[2 * pair] == textSize) {
+                return entry[2 * pair + 1];
+            }
+            pair++;
+        }
+        if (pair == MAX_SIZES_PER_LABEL) {
+            pair--;
+        }
+        entry[2 * pair] = textSize;
+        entry[2 * pair + 1] = paint.measureText(label);
+        return entry[2 * pair + 1];
+    }
+
+    void clear() {
+        widths.clear();
+    }
+}
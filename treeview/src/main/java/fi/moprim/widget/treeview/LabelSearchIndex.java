@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Case insensitive search over the node labels, and over the paths when the query contains a separator.
+ * Distinct labels are kept in a sorted map for prefix queries and in a trigram index for substring queries,
+ * each distinct label then lists its nodes. Nodes are added one by one as the tree grows.
+ */
+final class LabelSearchIndex {
+
+    private static final char PATH_SEPARATOR = '/';
+
+    // Ranks of a match, the lower the better
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int WORD = 2;
+    private static final int SUBSTRING = 3;
+
+    private static final Comparator<Match> WORST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match a, Match b) {
+            return b.compareTo(a);
+        }
+    };
+
+    private final TreeMap<String, Integer> labelIds;
+    private final ArrayList<String> labels;
+    private final ArrayList<Postings> labelNodes;
+    private final HashMap<Long, Postings> trigrams;
+    private final ArrayList<TreeNode> nodes;
+
+    LabelSearchIndex() {
+        this.labelIds = new TreeMap<>();
+        this.labels = new ArrayList<>();
+        this.labelNodes = new ArrayList<>();
+        this.trigrams = new HashMap<>();
+        this.nodes = new ArrayList<>();
+    }
+
+    void addAll(List<TreeNode> nodeList) {
+        for (TreeNode node : nodeList) {
+            add(node);
+            addAll(node.getChildren());
+        }
+    }
+
+    void add(TreeNode node) {
+        if (node.getLabel() == null) {
+            return;
+        }
+        String label = node.getLabel().toLowerCase(Locale.ROOT);
+        Integer id = labelIds.get(label);
+        if (id == null) {
+            id = labels.size();
+            labelIds.put(label, id);
+            labels.add(label);
+            labelNodes.add(new Postings());
+            for (int i = 0; i + 3 <= label.length(); i++) {
+                Long key = trigram(label, i);
+                Postings postings = trigrams.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    trigrams.put(key, postings);
+                }
+                // Label ids only grow, so a repeated trigram of the same label is the last entry
+                if (postings.size == 0 || postings.values[postings.size - 1] != id) {
+                    postings.add(id);
+                }
+            }
+        }
+        labelNodes.get(id).add(nodes.size());
+        nodes.add(node);
+    }
+
+    /**
+     * Takes a node out of the results, its label stays in the index
+     */
+    void remove(TreeNode node) {
+        if (node.getLabel() == null) {
+            return;
+        }
+        Integer id = labelIds.get(node.getLabel().toLowerCase(Locale.ROOT));
+        if (id == null) {
+            return;
+        }
+        Postings postings = labelNodes.get(id);
+        for (int i = 0; i < postings.size; i++) {
+            if (node.equals(nodes.get(postings.values[i]))) {
+                nodes.set(postings.values[i], null);
+                postings.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exact label matches first, then prefixes, then matches at the start of a word, then any substring.
+     * Within a rank, shallower nodes come first, then heavier ones.
+     * Substrings are only looked for with three characters or more, shorter queries match prefixes.
+     */
+    List<TreeNode> search(String query, int maxResults) {
+        String normalized = query.trim().toLowerCase(Locale.ROOT);
+        while (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) == PATH_SEPARATOR) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        String term = normalized;
+        int separator = normalized.lastIndexOf(PATH_SEPARATOR);
+        if (separator >= 0) {
+            term = normalized.substring(separator + 1);
+        }
+        if (term.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        boolean pathQuery = separator >= 0;
+        PriorityQueue<Match> best = new PriorityQueue<>(Math.min(maxResults, 64), WORST_FIRST);
+        if (term.length() < 3) {
+            for (Integer id : labelIds.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                collect(id, rank(labels.get(id), term), pathQuery ? normalized : null, maxResults, best);
+            }
+        } else {
+            Postings candidates = intersectTrigrams(term);
+            for (int i = 0; candidates != null && i < candidates.size; i++) {
+                int id = candidates.values[i];
+                String label = labels.get(id);
+                if (label.contains(term)) {
+                    collect(id, rank(label, term), pathQuery ? normalized : null, maxResults, best);
+                }
+            }
+        }
+        Match[] matches = best.toArray(new Match[best.size()]);
+        Arrays.sort(matches);
+        List<TreeNode> result = new ArrayList<>(matches.length);
+        for (Match match : matches) {
+            result.add(match.node);
+        }
+        return result;
+    }
+
+    private void collect(int id, int rank, String pathQuery, int maxResults, PriorityQueue<Match> best) {
+        Postings postings = labelNodes.get(id);
+        for (int i = 0; i < postings.size; i++) {
+            TreeNode node = nodes.get(postings.values[i]);
+            if (pathQuery != null && !node.getPath().toLowerCase(Locale.ROOT).contains(pathQuery)) {
+                continue;
+            }
+            if (best.size() < maxResults) {
+                best.add(new Match(node, rank));
+            } else if (best.peek().compareTo(rank, node.getDepth(), node.getWeight()) > 0) {
+                best.poll();
+                best.add(new Match(node, rank));
+            }
+        }
+    }
+
+    private Postings intersectTrigrams(String term) {
+        Postings[] lists = new Postings[term.length() - 2];
+        int smallest = 0;
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = trigrams.get(trigram(term, i));
+            if (lists[i] == null) {
+                return null;
+            }
+            if (lists[i].size < lists[smallest].size) {
+                smallest = i;
+            }
+        }
+        Postings result = new Postings();
+        for (int k = 0; k < lists[smallest].size; k++) {
+            int id = lists[smallest].values[k];
+            boolean inAll = true;
+            for (int i = 0; i < lists.length && inAll; i++) {
+                inAll = i == smallest || Arrays.binarySearch(lists[i].values, 0, lists[i].size, id) >= 0;
+            }
+            if (inAll) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private static int rank(String label, String term) {
+        if (label.equals(term)) {
+            return EXACT;
+        }
+        if (label.startsWith(term)) {
+            return PREFIX;
+        }
+        for (int at = label.indexOf(term); at >= 0; at = label.indexOf(term, at + 1)) {
+            if (!Character.isLetterOrDigit(label.charAt(at - 1))) {
+                return WORD;
+            }
+        }
+        return SUBSTRING;
+    }
+
+    private static Long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+    }
+
+    private static final class Postings {
+
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int position) {
+            System.arraycopy(values, position + 1, values, position, size - position - 1);
+            size--;
+        }
+    }
+
+    private static final class Match implements Comparable<Match> {
+
+        private final TreeNode node;
+        private final int rank;
+        private final int depth;
+        private final double weight;
+
+        Match(TreeNode node, int rank) {
+            this.node = node;
+            this.rank = rank;
+            this.depth = node.getDepth();
+            this.weight = node.getWeight();
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            return compareTo(other.rank, other.depth, other.weight);
+        }
+
+        int compareTo(int otherRank, int otherDepth, double otherWeight) {
+            if (rank != otherRank) {
+                return rank < otherRank ? -1 : 1;
+            }
+            if (depth != otherDepth) {
+                return depth < otherDepth ? -1 : 1;
+            }
+            return Double.compare(otherWeight, weight);
+        }
+    }
+}
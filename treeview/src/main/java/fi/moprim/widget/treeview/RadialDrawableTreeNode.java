@@ -15,14 +15,9 @@ package fi.moprim.widget.treeview;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.PathMeasure;
 import android.graphics.RectF;
-import android.graphics.drawable.Drawable;
-import android.support.v4.content.ContextCompat;
-import android.support.v4.graphics.drawable.DrawableCompat;
 
 /**
  * Created by mineraud on 04/01/17.
@@ -31,6 +26,9 @@ class RadialDrawableTreeNode extends DrawableTreeNode {
 
     private final RectF innerCircle;
     private final RectF outerCircle;
+    private final RectF middleCircle;
+    private float middleRadius;
+    private float middleAngle;
 
     private RadialDrawableTreeNode(Context context, TreeNode node, RectF innerCircle, RectF outerCircle,
                                    float start, float sweep,
@@ -38,6 +36,7 @@ class RadialDrawableTreeNode extends DrawableTreeNode {
         super(context, node, start, sweep, backgroundPaint, iconBitmap, iconSize);
         this.innerCircle = innerCircle;
         this.outerCircle = outerCircle;
+        this.middleCircle = new RectF();
     }
 
 //    static RadialDrawableTreeNode getInstance(Context context, TreeNode node, RectF innerCircle, RectF outerCircle,
@@ -54,53 +53,55 @@ class RadialDrawableTreeNode extends DrawableTreeNode {
 //                backgroundPaint, iconBitmap, iconSize);
 //    }
 
+    /**
+     * @param backgroundPaint shared with the other slices of the same color, see {@link SliceCache}
+     */
     static RadialDrawableTreeNode getInstance(Context context, TreeNode node, RectF innerCircle, RectF outerCircle,
                                               float start, float sweep,
-                                              int backgroundColorResId, int iconResId, float iconSize, int colorIcon) {
-        Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        backgroundPaint.setStyle(Paint.Style.FILL);
-        backgroundPaint.setColor(ContextCompat.getColor(context, backgroundColorResId));
-        Bitmap iconBitmap = null;
-        if (iconResId != -1) {
-            if (colorIcon != -1) {
-
-                Drawable icon = ContextCompat.getDrawable(context, iconResId);
-                icon.mutate(); // A mutable drawable is guaranteed to not share its state with any other drawable
-                DrawableCompat.setTint(icon,
-                        ContextCompat.getColor(context, android.R.color.white));
-                iconBitmap = DrawableTreeNode.drawableToBitmap(icon);
-            } else {
-                iconBitmap = BitmapFactory.decodeResource(context.getResources(), iconResId);
-            }
-        }
+                                              Paint backgroundPaint, Bitmap iconBitmap, float iconSize) {
         return new RadialDrawableTreeNode(context, node, innerCircle, outerCircle, start, sweep,
                 backgroundPaint, iconBitmap, iconSize);
     }
 
+    /**
+     * @return true if the slice is drawn between these circles, which are shared by the slices of a ring
+     */
+    boolean isInRing(RectF innerCircle, RectF outerCircle) {
+        return this.innerCircle == innerCircle && this.outerCircle == outerCircle;
+    }
+
     @Override
     void setBackgroundPath() {
-        backgroundPath.reset();
-        backgroundPath.arcTo(outerCircle, getStart(), getSweep(), false);
-        backgroundPath.arcTo(innerCircle, getStart() + getSweep(), -getSweep(), false);
-        backgroundPath.close();
+        SliceRenderer.setSlicePath(backgroundPath, innerCircle, outerCircle, getStart(), getSweep());
     }
 
     @Override
     void setMiddlePointAndLength() {
-        float left = (outerCircle.left + innerCircle.left) / 2;
-        float top = (outerCircle.top + innerCircle.top) / 2;
-        float right = (outerCircle.right + innerCircle.right) / 2;
-        float bottom = (outerCircle.bottom + innerCircle.bottom) / 2;
-        RectF middleCircle = new RectF(left, top, right, bottom);
-        Path path = new Path();
-        path.arcTo(middleCircle, getStart(), getSweep() / 2, false);
-        PathMeasure pm = new PathMeasure(path, false);
-        // coordinates will be here
-        float coordinates[] = {0f, 0f};
-        //get point at the end
-        pm.getPosTan(pm.getLength(), coordinates, null);
+        // The middle of the arc half way between the inner and outer circle
+        this.middleRadius = (outerCircle.width() + innerCircle.width()) / 4;
+        this.middleAngle = getStart() + getSweep() / 2;
+        double angle = Math.toRadians(middleAngle);
+        this.length = (float) Math.toRadians(Math.abs(getSweep())) * middleRadius;
+        this.thickness = (outerCircle.width() - innerCircle.width()) / 2;
+        this.middlePoint.set(
+                outerCircle.centerX() + (float) (middleRadius * Math.cos(angle)),
+                outerCircle.centerY() + (float) (middleRadius * Math.sin(angle)));
+        if (labelMode == LABEL_ALONG) {
+            SliceRenderer.setCircle(middleCircle, outerCircle.centerX(), outerCircle.centerY(), middleRadius);
+            SliceRenderer.setLabelPath(labelPath, middleCircle, getStart(), getSweep());
+        }
+    }
 
-        this.length = pm.getLength() * 2;
-        this.middlePoint.set(coordinates[0], coordinates[1]);
+    @Override
+    boolean drawLabel(Canvas canvas) {
+        return SliceRenderer.drawLabel(canvas, label, labelWidth, labelHeight, labelBaseline, labelPaint, labelMode,
+                labelPath, outerCircle.centerX(), outerCircle.centerY(), middleRadius, middleAngle, length,
+                (outerCircle.width() - innerCircle.width()) / 2);
+    }
+
+    @Override
+    boolean labelFits() {
+        return SliceRenderer.labelFits(labelMode, labelWidth, labelHeight, length,
+                (outerCircle.width() - innerCircle.width()) / 2);
     }
 }
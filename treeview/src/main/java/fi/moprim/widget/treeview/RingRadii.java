@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.Arrays;
+
+/**
+ * Inner and outer radius of every ring, computed once per layout for drawing and hit-testing alike.
+ * Rings are either all as thick as a layer, or as thick as their visible content,
+ * in which case the rings that show nothing collapse and leave their room to the others.
+ */
+final class RingRadii {
+
+    // Share of a layer left empty between two rings
+    private static final float GAP = 0.05f;
+
+    private float innerRadius;
+    // Indexed by depth, the first ring is at 1
+    private float[] inner;
+    private float[] outer;
+    private int depth;
+    // Angle covered by each ring, then its share of the room
+    private float[] share;
+
+    RingRadii() {
+        this.inner = new float[2];
+        this.outer = new float[2];
+        this.depth = 0;
+        this.share = new float[2];
+    }
+
+    private RingRadii(RingRadii other) {
+        this.innerRadius = other.innerRadius;
+        this.inner = Arrays.copyOf(other.inner, other.depth + 1);
+        this.outer = Arrays.copyOf(other.outer, other.depth + 1);
+        this.depth = other.depth;
+        this.share = new float[0];
+    }
+
+    RingRadii copy() {
+        return new RingRadii(this);
+    }
+
+    /**
+     * Every ring is one layer thick: the first ring touches the inner circle, the others leave a small gap
+     *
+     * @return true if any radius changed
+     */
+    boolean setUniform(int depth, float innerRadius, float layerHeight) {
+        boolean changed = this.depth != depth || this.innerRadius != innerRadius;
+        ensureDepth(depth);
+        this.innerRadius = innerRadius;
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            float ringInner = innerRadius + (ringDepth == 1 ? 0 : (ringDepth - 1) * layerHeight + layerHeight * GAP);
+            float ringOuter = innerRadius + ringDepth * layerHeight;
+            changed |= inner[ringDepth] != ringInner || outer[ringDepth] != ringOuter;
+            inner[ringDepth] = ringInner;
+            outer[ringDepth] = ringOuter;
+        }
+        return changed;
+    }
+
+    /**
+     * Shares the room of depth layers between the rings by the square root of the angle their slices cover,
+     * so that a full ring is one layer thick when all rings are full.
+     * The rings without visible slices collapse on the ring below them.
+     *
+     * @return true if any radius changed
+     */
+    boolean setAdaptive(TreeLayout layout, int depth, float innerRadius, float layerHeight) {
+        int[] order = layout.getOrder();
+        for (int k = 0; k < layout.getCount(); k++) {
+            depth = Math.max(depth, layout.getDepth(order[k]));
+        }
+        if (share.length < depth + 1) {
+            share = new float[depth + 1];
+        }
+        Arrays.fill(share, 0f);
+        for (int k = 0; k < layout.getCount(); k++) {
+            int index = order[k];
+            float sweep = layout.getSweep(index);
+            if (sweep > 0) {
+                share[layout.getDepth(index)] += sweep;
+            }
+        }
+        float total = 0;
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            share[ringDepth] = (float) Math.sqrt(Math.min(share[ringDepth], 360f) / 360f);
+            total += share[ringDepth];
+        }
+        boolean changed = this.depth != depth || this.innerRadius != innerRadius;
+        ensureDepth(depth);
+        this.innerRadius = innerRadius;
+        float radius = innerRadius;
+        boolean first = true;
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            float thickness = total > 0 ? depth * layerHeight * share[ringDepth] / total : 0;
+            float ringInner = radius;
+            if (thickness > 0 && !first) {
+                ringInner += Math.min(layerHeight * GAP, thickness / 2);
+            }
+            radius += thickness;
+            first &= thickness <= 0;
+            changed |= inner[ringDepth] != ringInner || outer[ringDepth] != radius;
+            inner[ringDepth] = ringInner;
+            outer[ringDepth] = radius;
+        }
+        return changed;
+    }
+
+    private void ensureDepth(int depth) {
+        if (inner.length < depth + 1) {
+            inner = new float[depth + 1];
+            outer = new float[depth + 1];
+        }
+        this.depth = depth;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    float getInnerRadius() {
+        return innerRadius;
+    }
+
+    /**
+     * Rings past the deepest one are collapsed on it
+     */
+    float getInner(int ringDepth) {
+        if (ringDepth > depth) {
+            return getOuter(ringDepth);
+        }
+        return ringDepth < 1 ? innerRadius : inner[ringDepth];
+    }
+
+    float getOuter(int ringDepth) {
+        if (ringDepth < 1 || depth == 0) {
+            return innerRadius;
+        }
+        return outer[Math.min(ringDepth, depth)];
+    }
+
+    float getThickness(int ringDepth) {
+        return getOuter(ringDepth) - getInner(ringDepth);
+    }
+
+    /**
+     * @return the depth of the ring at that distance from the center, 0 in the inner circle, a gap or outside
+     */
+    int findDepth(float radius) {
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            if (radius < inner[ringDepth]) {
+                return 0;
+            }
+            if (radius < outer[ringDepth]) {
+                return ringDepth;
+            }
+        }
+        return 0;
+    }
+
+    boolean hasSameRadii(RingRadii other) {
+        if (other.depth != depth || other.innerRadius != innerRadius) {
+            return false;
+        }
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            if (other.inner[ringDepth] != inner[ringDepth] || other.outer[ringDepth] != outer[ringDepth]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
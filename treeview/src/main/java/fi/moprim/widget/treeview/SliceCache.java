@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.graphics.drawable.DrawableCompat;
+import android.util.SparseArray;
+
+/**
+ * Paints, icons and label widths of the slices, shared by all the views of an adapter.
+ * Icons are decoded once at their own resolution, each view scales them when drawing.
+ * Paints and icons may be taken from render threads, the label widths only from the main thread.
+ */
+final class SliceCache {
+
+    private final Context context;
+    private final SparseArray<Paint> paints;
+    private final SparseArray<Bitmap> icons;
+    private final SparseArray<Bitmap> tintedIcons;
+    private final LabelCache labelCache;
+
+    SliceCache(Context context) {
+        // The cache outlives the views, it must not keep an activity
+        this.context = context.getApplicationContext();
+        this.paints = new SparseArray<>();
+        this.icons = new SparseArray<>();
+        this.tintedIcons = new SparseArray<>();
+        this.labelCache = new LabelCache();
+    }
+
+    /**
+     * The paint is shared, it must not be modified
+     */
+    synchronized Paint getPaint(int colorResId) {
+        Paint paint = paints.get(colorResId);
+        if (paint == null) {
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setStyle(Paint.Style.FILL);
+            paint.setColor(ContextCompat.getColor(context, colorResId));
+            paints.put(colorResId, paint);
+        }
+        return paint;
+    }
+
+    /**
+     * @return the icon, or null for -1
+     */
+    synchronized Bitmap getIcon(int iconResId, boolean tinted) {
+        if (iconResId == -1) {
+            return null;
+        }
+        SparseArray<Bitmap> bitmaps = tinted ? tintedIcons : icons;
+        Bitmap iconBitmap = bitmaps.get(iconResId);
+        if (iconBitmap == null) {
+            if (tinted) {
+                Drawable icon = ContextCompat.getDrawable(context, iconResId);
+                icon.mutate(); // A mutable drawable is guaranteed to not share its state with any other drawable
+                DrawableCompat.setTint(icon,
+                        ContextCompat.getColor(context, android.R.color.white));
+                iconBitmap = DrawableTreeNode.drawableToBitmap(icon);
+            } else {
+                iconBitmap = BitmapFactory.decodeResource(context.getResources(), iconResId);
+            }
+            bitmaps.put(iconResId, iconBitmap);
+        }
+        return iconBitmap;
+    }
+
+    /**
+     * Drops the decoded icons, they are decoded again on demand. The views still drawing them keep their own.
+     */
+    synchronized void releaseIcons() {
+        icons.clear();
+        tintedIcons.clear();
+    }
+
+    LabelCache getLabelCache() {
+        return labelCache;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Draws the slices of a {@link SliceSnapshot}, with the same geometry as the radial slices of the view.
+ * A renderer reuses its paths and paints, it is meant to be used by one thread at a time.
+ */
+final class SliceRenderer {
+
+    private final Path path;
+    private final Path labelPath;
+    private final RectF innerCircle;
+    private final RectF outerCircle;
+    private final RectF middleCircle;
+    private final RectF bounds;
+    private final Rect src;
+    private final Rect dst;
+    private final Paint fillPaint;
+    private final Paint shadowPaint;
+
+    SliceRenderer() {
+        this.path = new Path();
+        this.labelPath = new Path();
+        this.innerCircle = new RectF();
+        this.outerCircle = new RectF();
+        this.middleCircle = new RectF();
+        this.bounds = new RectF();
+        this.src = new Rect();
+        this.dst = new Rect();
+        this.fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        fillPaint.setStyle(Paint.Style.FILL);
+        this.shadowPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        shadowPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Draws the snapshot in view coordinates, slices outside of the canvas clip are skipped.
+     */
+    void draw(Canvas canvas, SliceSnapshot snapshot) {
+        float centerX = snapshot.centerX;
+        float centerY = snapshot.centerY;
+        if (snapshot.shadow) {
+            float middle = (snapshot.getInnerRadius(1) + snapshot.getOuterRadius(1)) / 2 - snapshot.shadowOffset / 2;
+            bounds.set(centerX - middle, centerY - middle, centerX + middle, centerY + middle);
+            shadowPaint.setColor(snapshot.shadowColor);
+            shadowPaint.setStrokeWidth(snapshot.rings.getThickness(1) + snapshot.shadowOffset);
+            canvas.drawOval(bounds, shadowPaint);
+        }
+        Paint labelPaint = snapshot.labelPaint;
+        float labelHeight = labelPaint.descent() - labelPaint.ascent();
+        float labelBaseline = -(labelPaint.ascent() + labelPaint.descent()) / 2;
+        int iconSize = Math.round(snapshot.iconSize);
+        for (int i = 0; i < snapshot.count; i++) {
+            float start = snapshot.start[i];
+            float sweep = snapshot.sweep[i];
+            if (sweep <= 0) {
+                continue;
+            }
+            float innerRadius = snapshot.getInnerRadius(snapshot.depth[i]);
+            float outerRadius = snapshot.getOuterRadius(snapshot.depth[i]);
+            setCircle(innerCircle, centerX, centerY, innerRadius);
+            setCircle(outerCircle, centerX, centerY, outerRadius);
+            setSlicePath(path, innerCircle, outerCircle, start, sweep);
+            path.computeBounds(bounds, true);
+            if (canvas.quickReject(bounds, Canvas.EdgeType.AA)) {
+                continue;
+            }
+            fillPaint.setColor(snapshot.color[i]);
+            canvas.drawPath(path, fillPaint);
+
+            float middleRadius = (outerRadius + innerRadius) / 2;
+            float middleAngle = start + sweep / 2;
+            float length = (float) Math.toRadians(Math.abs(sweep)) * middleRadius;
+            String label = snapshot.label[i];
+            if (label != null && snapshot.labelMode != DrawableTreeNode.LABEL_NONE) {
+                if (snapshot.labelMode == DrawableTreeNode.LABEL_ALONG) {
+                    setCircle(middleCircle, centerX, centerY, middleRadius);
+                    setLabelPath(labelPath, middleCircle, start, sweep);
+                }
+                if (drawLabel(canvas, label, snapshot.labelWidth[i], labelHeight, labelBaseline, labelPaint,
+                        snapshot.labelMode, labelPath, centerX, centerY, middleRadius, middleAngle,
+                        length, outerRadius - innerRadius)) {
+                    continue;
+                }
+            }
+            if (snapshot.icon[i] != null && iconSize < length && iconSize <= outerRadius - innerRadius) {
+                double angle = Math.toRadians(middleAngle);
+                float x = centerX + (float) (middleRadius * Math.cos(angle));
+                float y = centerY + (float) (middleRadius * Math.sin(angle));
+                src.set(0, 0, snapshot.icon[i].getWidth() - 1, snapshot.icon[i].getHeight() - 1);
+                dst.set((int) (x - iconSize / 2), (int) (y - iconSize / 2),
+                        (int) (x + iconSize / 2), (int) (y + iconSize / 2));
+                canvas.drawBitmap(snapshot.icon[i], src, dst, null);
+            }
+        }
+    }
+
+    static void setCircle(RectF circle, float centerX, float centerY, float radius) {
+        circle.set(centerX - radius, centerY - radius, centerX + radius, centerY + radius);
+    }
+
+    static void setSlicePath(Path path, RectF innerCircle, RectF outerCircle, float start, float sweep) {
+        path.reset();
+        path.arcTo(outerCircle, start, sweep, false);
+        path.arcTo(innerCircle, start + sweep, -sweep, false);
+        path.close();
+    }
+
+    static void setLabelPath(Path labelPath, RectF middleCircle, float start, float sweep) {
+        labelPath.reset();
+        if (isUpsideDown(start + sweep / 2)) {
+            // Run the arc counter clockwise on the lower half so that the text is not upside down
+            labelPath.addArc(middleCircle, start + sweep, -sweep);
+        } else {
+            labelPath.addArc(middleCircle, start, sweep);
+        }
+    }
+
+    /**
+     * Draws a label within its slice, along the middle arc or along the radius.
+     * The arc length and ring thickness are the room left by the neighbouring slices.
+     *
+     * @return false if the label does not fit, nothing is drawn then
+     */
+    static boolean drawLabel(Canvas canvas, String label, float labelWidth, float labelHeight, float labelBaseline,
+                             Paint labelPaint, int labelMode, Path labelPath, float centerX, float centerY,
+                             float middleRadius, float middleAngle, float length, float thickness) {
+        if (!labelFits(labelMode, labelWidth, labelHeight, length, thickness)) {
+            return false;
+        }
+        if (labelMode == DrawableTreeNode.LABEL_ALONG) {
+            canvas.drawTextOnPath(label, labelPath, (length - labelWidth) / 2, labelBaseline, labelPaint);
+        } else {
+            boolean flipped = isLeftSide(middleAngle);
+            canvas.save();
+            canvas.rotate(flipped ? middleAngle + 180 : middleAngle, centerX, centerY);
+            float x = centerX + (flipped ? -middleRadius : middleRadius);
+            canvas.drawText(label, x - labelWidth / 2, centerY + labelBaseline, labelPaint);
+            canvas.restore();
+        }
+        return true;
+    }
+
+    static boolean labelFits(int labelMode, float labelWidth, float labelHeight, float length, float thickness) {
+        if (labelMode == DrawableTreeNode.LABEL_ALONG) {
+            return labelWidth <= length && labelHeight <= thickness;
+        }
+        return labelWidth <= thickness && labelHeight <= length;
+    }
+
+    static boolean isUpsideDown(float angle) {
+        angle = normalize(angle);
+        return angle > 0 && angle < 180;
+    }
+
+    static boolean isLeftSide(float angle) {
+        angle = normalize(angle);
+        return angle > 90 && angle < 270;
+    }
+
+    private static float normalize(float angle) {
+        angle %= 360;
+        return angle < 0 ? angle + 360 : angle;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * Copy of the slices of a tree view as they are on screen, in view coordinates.
+ * Once taken, nothing refers back to the view or the adapter,
+ * so that the slices can be drawn or written from any thread.
+ */
+final class SliceSnapshot {
+
+    final int width;
+    final int height;
+    final float centerX;
+    final float centerY;
+    // Owned by the snapshot, never changed once taken
+    final RingRadii rings;
+    final float iconSize;
+    final int labelMode;
+    final Paint labelPaint;
+    final boolean shadow;
+    final float shadowOffset;
+    final int shadowColor;
+
+    int count;
+    float[] start;
+    float[] sweep;
+    int[] depth;
+    int[] color;
+    Bitmap[] icon;
+    String[] label;
+    float[] labelWidth;
+
+    SliceSnapshot(int width, int height, RingRadii rings, float iconSize,
+                  int labelMode, Paint labelPaint, boolean shadow, float shadowOffset, int shadowColor,
+                  int capacity) {
+        this.width = width;
+        this.height = height;
+        this.centerX = width / 2;
+        this.centerY = height / 2;
+        this.rings = rings;
+        this.iconSize = iconSize;
+        this.labelMode = labelMode;
+        // The view may change its paint later on
+        this.labelPaint = new Paint(labelPaint);
+        this.shadow = shadow;
+        this.shadowOffset = shadowOffset;
+        this.shadowColor = shadowColor;
+        this.count = 0;
+        capacity = Math.max(capacity, 1);
+        this.start = new float[capacity];
+        this.sweep = new float[capacity];
+        this.depth = new int[capacity];
+        this.color = new int[capacity];
+        this.icon = new Bitmap[capacity];
+        this.label = new String[capacity];
+        this.labelWidth = new float[capacity];
+    }
+
+    /**
+     * Shares everything with the other snapshot but the angles, so that they can be animated
+     */
+    private SliceSnapshot(SliceSnapshot other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.centerX = other.centerX;
+        this.centerY = other.centerY;
+        this.rings = other.rings;
+        this.iconSize = other.iconSize;
+        this.labelMode = other.labelMode;
+        this.labelPaint = other.labelPaint;
+        this.shadow = other.shadow;
+        this.shadowOffset = other.shadowOffset;
+        this.shadowColor = other.shadowColor;
+        this.count = other.count;
+        this.start = Arrays.copyOf(other.start, other.count);
+        this.sweep = Arrays.copyOf(other.sweep, other.count);
+        this.depth = other.depth;
+        this.color = other.color;
+        this.icon = other.icon;
+        this.label = other.label;
+        this.labelWidth = other.labelWidth;
+    }
+
+    SliceSnapshot copyAngles() {
+        return new SliceSnapshot(this);
+    }
+
+    /**
+     * @return true if the other snapshot has the same slices in the same rings and the same geometry,
+     * so that only the angles differ
+     */
+    boolean hasSameSlices(SliceSnapshot other) {
+        if (other.count != count || other.width != width || other.height != height
+                || !other.rings.hasSameRadii(rings)) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (other.depth[i] != depth[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the angles of this snapshot between those of two snapshots with the same slices
+     */
+    void interpolate(SliceSnapshot from, SliceSnapshot to, float fraction) {
+        for (int i = 0; i < count; i++) {
+            start[i] = from.start[i] + (to.start[i] - from.start[i]) * fraction;
+            sweep[i] = from.sweep[i] + (to.sweep[i] - from.sweep[i]) * fraction;
+        }
+    }
+
+    /**
+     * Goes through all the slices, which is fine for a tap but not for every frame
+     *
+     * @return the position of the slice under the point, -1 for none
+     */
+    int findSliceAt(float x, float y) {
+        float dx = x - centerX;
+        float dy = y - centerY;
+        float radius = (float) Math.sqrt(dx * dx + dy * dy);
+        int ringDepth = rings.findDepth(radius);
+        if (ringDepth < 1) {
+            return -1;
+        }
+        // Same orientation as the arcs: clockwise from 3 o'clock
+        float angle = (float) Math.toDegrees(Math.atan2(dy, dx));
+        if (angle < 0) {
+            angle += 360;
+        }
+        for (int i = 0; i < count; i++) {
+            if (depth[i] == ringDepth && sweep[i] > 0 && angle >= start[i] && angle <= start[i] + sweep[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void add(float sliceStart, float sliceSweep, int sliceDepth, int sliceColor, Bitmap sliceIcon,
+             String sliceLabel, float sliceLabelWidth) {
+        if (count == start.length) {
+            int capacity = count * 2;
+            start = Arrays.copyOf(start, capacity);
+            sweep = Arrays.copyOf(sweep, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            color = Arrays.copyOf(color, capacity);
+            icon = Arrays.copyOf(icon, capacity);
+            label = Arrays.copyOf(label, capacity);
+            labelWidth = Arrays.copyOf(labelWidth, capacity);
+        }
+        start[count] = sliceStart;
+        sweep[count] = sliceSweep;
+        depth[count] = sliceDepth;
+        color[count] = sliceColor;
+        icon[count] = sliceIcon;
+        label[count] = sliceLabel;
+        labelWidth[count] = sliceLabelWidth;
+        count++;
+    }
+
+    /**
+     * Same rings as the view, see {@link RingRadii}
+     */
+    float getInnerRadius(int ringDepth) {
+        return rings.getInner(ringDepth);
+    }
+
+    float getOuterRadius(int ringDepth) {
+        return rings.getOuter(ringDepth);
+    }
+}
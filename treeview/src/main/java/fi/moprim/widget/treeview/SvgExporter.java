@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Paint;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a snapshot as SVG, element by element.
+ * Every element is built in one reused buffer and written straight away, nothing but the snapshot itself
+ * grows with the tree.
+ */
+final class SvgExporter implements Runnable {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SliceSnapshot snapshot;
+    private final Writer writer;
+    private final boolean labels;
+    private final TreeView.ExportCallback callback;
+    private final StringBuilder element;
+    private char[] chars;
+
+    SvgExporter(SliceSnapshot snapshot, Writer writer, boolean labels, TreeView.ExportCallback callback) {
+        this.snapshot = snapshot;
+        this.writer = writer;
+        this.labels = labels && snapshot.labelMode != DrawableTreeNode.LABEL_NONE;
+        this.callback = callback;
+        this.element = new StringBuilder(512);
+        this.chars = new char[512];
+    }
+
+    @Override
+    public void run() {
+        try {
+            export();
+            callback.onExportFinished();
+        } catch (IOException | RuntimeException e) {
+            callback.onExportFailed(e);
+        }
+    }
+
+    void export() throws IOException {
+        float centerX = snapshot.centerX;
+        float centerY = snapshot.centerY;
+        element.setLength(0);
+        element.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"")
+                .append(" width=\"").append(snapshot.width).append("\" height=\"").append(snapshot.height)
+                .append("\" viewBox=\"0 0 ").append(snapshot.width).append(' ').append(snapshot.height).append("\">\n");
+        if (snapshot.shadow) {
+            float radius = (snapshot.getInnerRadius(1) + snapshot.getOuterRadius(1)) / 2 - snapshot.shadowOffset / 2;
+            element.append("<circle cx=\"");
+            appendNumber(centerX);
+            element.append("\" cy=\"");
+            appendNumber(centerY);
+            element.append("\" r=\"");
+            appendNumber(radius);
+            element.append("\" fill=\"none\" stroke-width=\"");
+            appendNumber(snapshot.rings.getThickness(1) + snapshot.shadowOffset);
+            element.append('"');
+            appendColor("stroke", snapshot.shadowColor);
+            element.append("/>\n");
+        }
+        flush();
+
+        Paint labelPaint = snapshot.labelPaint;
+        float labelHeight = labelPaint.descent() - labelPaint.ascent();
+        float labelBaseline = -(labelPaint.ascent() + labelPaint.descent()) / 2;
+        for (int i = 0; i < snapshot.count; i++) {
+            float start = snapshot.start[i];
+            float sweep = snapshot.sweep[i];
+            if (sweep <= 0) {
+                continue;
+            }
+            float innerRadius = snapshot.getInnerRadius(snapshot.depth[i]);
+            float outerRadius = snapshot.getOuterRadius(snapshot.depth[i]);
+            element.append("<path d=\"");
+            appendWedge(centerX, centerY, innerRadius, outerRadius, start, sweep);
+            element.append('"');
+            appendColor("fill", snapshot.color[i]);
+            element.append("/>\n");
+
+            String label = snapshot.label[i];
+            float middleRadius = (outerRadius + innerRadius) / 2;
+            float length = (float) Math.toRadians(sweep) * middleRadius;
+            if (labels && label != null && SliceRenderer.labelFits(snapshot.labelMode, snapshot.labelWidth[i],
+                    labelHeight, length, outerRadius - innerRadius)) {
+                appendLabel(i, label, labelPaint, labelBaseline, middleRadius, length);
+            }
+            flush();
+        }
+        element.append("</svg>\n");
+        flush();
+        writer.flush();
+    }
+
+    private void appendLabel(int i, String label, Paint labelPaint, float labelBaseline, float middleRadius,
+                             float length) {
+        float centerX = snapshot.centerX;
+        float centerY = snapshot.centerY;
+        float start = snapshot.start[i];
+        float sweep = snapshot.sweep[i];
+        float middleAngle = start + sweep / 2;
+        if (snapshot.labelMode == DrawableTreeNode.LABEL_ALONG) {
+            // Same arc as the label path on screen, reversed on the lower half
+            boolean reversed = SliceRenderer.isUpsideDown(middleAngle);
+            element.append("<path id=\"label").append(i).append("\" fill=\"none\" d=\"");
+            appendArcFrom(centerX, centerY, middleRadius, reversed ? start + sweep : start,
+                    reversed ? -sweep : sweep, true);
+            element.append("\"/>\n<text");
+            appendTextStyle(labelPaint);
+            element.append(" dy=\"");
+            appendNumber(labelBaseline);
+            element.append("\"><textPath xlink:href=\"#label").append(i).append("\" startOffset=\"");
+            appendNumber((length - snapshot.labelWidth[i]) / 2);
+            element.append("\">");
+            appendEscaped(label);
+            element.append("</textPath></text>\n");
+        } else {
+            boolean flipped = SliceRenderer.isLeftSide(middleAngle);
+            float x = centerX + (flipped ? -middleRadius : middleRadius);
+            element.append("<text");
+            appendTextStyle(labelPaint);
+            element.append(" x=\"");
+            appendNumber(x - snapshot.labelWidth[i] / 2);
+            element.append("\" y=\"");
+            appendNumber(centerY + labelBaseline);
+            element.append("\" transform=\"rotate(");
+            appendNumber(flipped ? middleAngle + 180 : middleAngle);
+            element.append(' ');
+            appendNumber(centerX);
+            element.append(' ');
+            appendNumber(centerY);
+            element.append(")\">");
+            appendEscaped(label);
+            element.append("</text>\n");
+        }
+    }
+
+    /**
+     * Outer arc clockwise, then the inner arc back, like the slice paths on screen
+     */
+    private void appendWedge(float centerX, float centerY, float innerRadius, float outerRadius,
+                             float start, float sweep) {
+        if (sweep >= 360) {
+            // A single arc cannot end where it starts, draw the full ring as two halves per circle
+            appendArcFrom(centerX, centerY, outerRadius, start, 180, true);
+            appendArcFrom(centerX, centerY, outerRadius, start + 180, 180, false);
+            element.append('Z');
+            appendArcFrom(centerX, centerY, innerRadius, start, -180, true);
+            appendArcFrom(centerX, centerY, innerRadius, start - 180, -180, false);
+            element.append('Z');
+            return;
+        }
+        appendArcFrom(centerX, centerY, outerRadius, start, sweep, true);
+        element.append('L');
+        appendPoint(centerX, centerY, innerRadius, start + sweep);
+        appendArcFrom(centerX, centerY, innerRadius, start + sweep, -sweep, false);
+        element.append('Z');
+    }
+
+    private void appendArcFrom(float centerX, float centerY, float radius, float start, float sweep, boolean move) {
+        if (move) {
+            element.append('M');
+            appendPoint(centerX, centerY, radius, start);
+        }
+        element.append('A');
+        appendNumber(radius);
+        element.append(' ');
+        appendNumber(radius);
+        element.append(Math.abs(sweep) > 180 ? " 0 1 " : " 0 0 ");
+        // Positive angles are clockwise on screen and in SVG alike
+        element.append(sweep > 0 ? "1 " : "0 ");
+        appendPoint(centerX, centerY, radius, start + sweep);
+    }
+
+    private void appendPoint(float centerX, float centerY, float radius, float angle) {
+        double radians = Math.toRadians(angle);
+        appendNumber(centerX + (float) (radius * Math.cos(radians)));
+        element.append(' ');
+        appendNumber(centerY + (float) (radius * Math.sin(radians)));
+        element.append(' ');
+    }
+
+    private void appendTextStyle(Paint labelPaint) {
+        element.append(" font-size=\"");
+        appendNumber(labelPaint.getTextSize());
+        element.append('"');
+        appendColor("fill", labelPaint.getColor());
+    }
+
+    private void appendColor(String attribute, int color) {
+        element.append(' ').append(attribute).append("=\"#");
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            element.append(HEX[(color >> shift) & 0xf]);
+        }
+        element.append('"');
+        int alpha = color >>> 24;
+        if (alpha < 255) {
+            element.append(' ').append(attribute).append("-opacity=\"");
+            appendNumber(alpha / 255f);
+            element.append('"');
+        }
+    }
+
+    /**
+     * Two decimals are below what any viewer shows, and much cheaper than formatting
+     */
+    private void appendNumber(float value) {
+        long hundredths = Math.round(value * 100.0);
+        if (hundredths < 0) {
+            element.append('-');
+            hundredths = -hundredths;
+        }
+        element.append(hundredths / 100);
+        int fraction = (int) (hundredths % 100);
+        if (fraction != 0) {
+            element.append('.');
+            if (fraction < 10) {
+                element.append('0').append(fraction);
+            } else {
+                element.append(fraction % 10 == 0 ? fraction / 10 : fraction);
+            }
+        }
+    }
+
+    private void appendEscaped(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    element.append("&lt;");
+                    break;
+                case '>':
+                    element.append("&gt;");
+                    break;
+                case '&':
+                    element.append("&amp;");
+                    break;
+                case '"':
+                    element.append("&quot;");
+                    break;
+                default:
+                    element.append(c);
+                    break;
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        int length = element.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        element.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+        element.setLength(0);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import java.io.IOException;
+
+/**
+ * Renders a snapshot at any scale, one tile at a time.
+ * A single tile bitmap is allocated and handed to the sink for every tile in turn,
+ * so that the memory used does not depend on the output size.
+ */
+final class TileExporter implements Runnable {
+
+    private final SliceSnapshot snapshot;
+    private final float scale;
+    private final int tileSize;
+    private final TreeView.TileSink sink;
+
+    TileExporter(SliceSnapshot snapshot, float scale, int tileSize, TreeView.TileSink sink) {
+        if (scale <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("The scale and tile size must be positive");
+        }
+        this.snapshot = snapshot;
+        this.scale = scale;
+        this.tileSize = tileSize;
+        this.sink = sink;
+    }
+
+    int getOutputWidth() {
+        return (int) Math.ceil(snapshot.width * scale);
+    }
+
+    int getOutputHeight() {
+        return (int) Math.ceil(snapshot.height * scale);
+    }
+
+    @Override
+    public void run() {
+        try {
+            export();
+            sink.onExportFinished();
+        } catch (IOException | RuntimeException e) {
+            sink.onExportFailed(e);
+        }
+    }
+
+    void export() throws IOException {
+        int outputWidth = getOutputWidth();
+        int outputHeight = getOutputHeight();
+        Bitmap tile = Bitmap.createBitmap(Math.min(tileSize, outputWidth), Math.min(tileSize, outputHeight),
+                Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(tile);
+            SliceRenderer renderer = new SliceRenderer();
+            for (int top = 0; top < outputHeight; top += tileSize) {
+                for (int left = 0; left < outputWidth; left += tileSize) {
+                    int width = Math.min(tileSize, outputWidth - left);
+                    int height = Math.min(tileSize, outputHeight - top);
+                    tile.eraseColor(Color.TRANSPARENT);
+                    int saveCount = canvas.save();
+                    // The clip lets the renderer skip the slices outside of the tile
+                    canvas.clipRect(0, 0, width, height);
+                    canvas.translate(-left, -top);
+                    canvas.scale(scale, scale);
+                    renderer.draw(canvas, snapshot);
+                    canvas.restoreToCount(saveCount);
+                    sink.onTile(tile, left, top, width, height);
+                }
+            }
+        } finally {
+            tile.recycle();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Bundle;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.widget.ExploreByTouchHelper;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.List;
+
+/**
+ * Exposes the visible slices of a tree view as virtual views, their ids are the layout indexes.
+ * Node info is only created when an accessibility service asks for a slice.
+ * Only the slices as large as a touch target are listed for keyboard and linear navigation,
+ * the smaller ones are still found by touch exploration, through the same hit-test index as taps.
+ */
+final class TreeAccessibilityHelper extends ExploreByTouchHelper {
+
+    // The minimum size of a touch target in the accessibility guidelines
+    private static final float MIN_TARGET_DP = 48f;
+
+    private final TreeView treeView;
+    private final Rect bounds;
+    private final RectF sliceBounds;
+    private final float minTargetSize;
+
+    TreeAccessibilityHelper(TreeView treeView) {
+        super(treeView);
+        this.treeView = treeView;
+        this.bounds = new Rect();
+        this.sliceBounds = new RectF();
+        this.minTargetSize = MIN_TARGET_DP * treeView.getResources().getDisplayMetrics().density;
+    }
+
+    @Override
+    protected int getVirtualViewAt(float x, float y) {
+        int index = treeView.findSliceAt(x, y);
+        return index == FlatTree.NONE ? INVALID_ID : index;
+    }
+
+    @Override
+    protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+        HitTestIndex hitTestIndex = treeView.getHitTestIndex();
+        for (int position = 0; position < hitTestIndex.getCount(); position++) {
+            int index = hitTestIndex.getIndex(position);
+            // A ring holds at most as many targets as its circumference allows
+            if (treeView.isTouchTarget(index, minTargetSize)) {
+                virtualViewIds.add(index);
+            }
+        }
+    }
+
+    @Override
+    protected void onPopulateNodeForVirtualView(int virtualViewId, AccessibilityNodeInfoCompat node) {
+        DrawableTreeNode drawableTreeNode = treeView.getDrawableTreeNode(virtualViewId);
+        if (drawableTreeNode == null) {
+            // The slice is gone since the ids were listed, the bounds must not be empty though
+            node.setContentDescription("");
+            bounds.set(0, 0, 1, 1);
+            node.setBoundsInParent(bounds);
+            return;
+        }
+        drawableTreeNode.updateGeometry();
+        sliceBounds.set(drawableTreeNode.getBounds());
+        treeView.mapToView(sliceBounds);
+        sliceBounds.roundOut(bounds);
+        if (bounds.isEmpty()) {
+            bounds.set(bounds.left, bounds.top, bounds.left + 1, bounds.top + 1);
+        }
+        node.setBoundsInParent(bounds);
+        node.setContentDescription(describe(drawableTreeNode.getNode(), treeView.getSweepShare(virtualViewId)));
+        node.setClickable(true);
+        node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+        node.setSelected((drawableTreeNode.getSliceState() & DrawableTreeNode.STATE_SELECTED) != 0);
+    }
+
+    @Override
+    protected boolean onPerformActionForVirtualView(int virtualViewId, int action, Bundle arguments) {
+        if (action == AccessibilityNodeInfoCompat.ACTION_CLICK && treeView.getDrawableTreeNode(virtualViewId) != null) {
+            treeView.performSliceClick(virtualViewId);
+            invalidateVirtualView(virtualViewId);
+            sendEventForVirtualView(virtualViewId, AccessibilityEvent.TYPE_VIEW_CLICKED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param share the share of the parent slice, which is what the slice shows
+     */
+    private static String describe(TreeNode node, float share) {
+        String label = node.getLabel() == null ? "" : node.getLabel();
+        if (share <= 0) {
+            return label;
+        }
+        return label + ", " + Math.round(100 * share) + "%";
+    }
+}
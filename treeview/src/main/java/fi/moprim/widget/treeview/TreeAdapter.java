@@ -13,6 +13,10 @@
  */
 package fi.moprim.widget.treeview;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -24,14 +28,53 @@ import java.util.NoSuchElementException;
 public class TreeAdapter {
 
     private final ArrayList<TreeNode> rootNodes;
+    private final ChildIndex rootIndex;
+    private final TreeNodeStore store;
     private int depth;
+    // Number of nodes at each depth, so that the depth can go down again when nodes are removed
+    private int[] depthCounts;
     private int minimumDepth = 1;
     private ArrayList<TreeNodeChangeListener> listeners;
+    private WeightHistory weightHistory;
+    // Shared with the nodes, which count their own changes
+    private final TreeVersion version;
+    private final ArrayList<TreeLayout> layouts;
+    private SliceCache sliceCache;
+    private LabelSearchIndex searchIndex;
+    private TreeSnapshot snapshot;
 
     public TreeAdapter() {
+        this(null);
+    }
+
+    private TreeAdapter(TreeNodeStore store) {
         this.rootNodes = new ArrayList<>();
+        this.rootIndex = new ChildIndex(rootNodes);
+        this.store = store;
         this.depth = 0;
+        this.depthCounts = new int[8];
         this.listeners = new ArrayList<>();
+        this.version = store != null ? store.version : new TreeVersion();
+        this.layouts = new ArrayList<>();
+    }
+
+    /**
+     * Creates an adapter whose nodes are kept in primitive arrays rather than in one object per node,
+     * the returned {@link TreeNode} instances are lightweight views over that store.
+     * Intended for trees with hundreds of thousands of nodes.
+     *
+     * @param initialCapacity the expected number of nodes
+     */
+    public static TreeAdapter withCompactStore(int initialCapacity) {
+        return new TreeAdapter(new TreeNodeStore(initialCapacity));
+    }
+
+    public boolean isCompact() {
+        return store != null;
+    }
+
+    TreeNodeStore getStore() {
+        return store;
     }
 
     public void addTreeNodeChangeListener(TreeNodeChangeListener listener) {
@@ -55,16 +98,107 @@ public class TreeAdapter {
         }
     }
 
+    /**
+     * @return a counter that moves whenever a node is added, removed or moved
+     */
+    int getStructureVersion() {
+        return version.structure;
+    }
+
+    /**
+     * @return a counter that moves whenever the weight of a node changes
+     */
+    int getWeightVersion() {
+        return version.weights;
+    }
+
+    /**
+     * The layout is in angles only, so that every view of this adapter drawn with the same skip length
+     * shares it, whatever its size. It is only computed again once the tree changed.
+     */
+    TreeLayout getLayout(float skipLength) {
+        TreeLayout layout = null;
+        for (TreeLayout candidate : layouts) {
+            if (candidate.isComputed(version.structure, version.weights, skipLength)) {
+                return candidate;
+            }
+            if (layout == null && candidate.getSkipLength() == skipLength) {
+                layout = candidate;
+            }
+        }
+        if (layout == null) {
+            layout = new TreeLayout();
+            layouts.add(layout);
+        }
+        layout.compute(this, skipLength);
+        return layout;
+    }
+
+    SliceCache getSliceCache(Context context) {
+        if (sliceCache == null) {
+            sliceCache = new SliceCache(context);
+        }
+        return sliceCache;
+    }
+
+    /**
+     * Releases what is only kept to draw faster, in tiers: the decoded icons first, then the layouts,
+     * label widths and search index. Everything is computed again on demand.
+     * {@link TreeView}s call it for their adapter, other users may call it from their own callbacks.
+     *
+     * @param level a level of {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        if (releasesIcons(level) && sliceCache != null) {
+            sliceCache.releaseIcons();
+        }
+        if (releasesGeometry(level)) {
+            layouts.clear();
+            if (sliceCache != null) {
+                sliceCache.getLabelCache().clear();
+            }
+            searchIndex = null;
+        }
+    }
+
+    static boolean releasesIcons(int level) {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+    }
+
+    /**
+     * The running levels below critical only release the icons, the app is still in the foreground
+     */
+    static boolean releasesGeometry(int level) {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+    }
+
+    /**
+     * Takes an immutable copy of the tree that any thread can read, to be called from the thread that changes the tree.
+     * The subtrees that did not change since the previous snapshot are shared with it,
+     * so that only the changed nodes and their ancestors are copied.
+     */
+    public TreeSnapshot snapshot() {
+        if (snapshot == null || snapshot.structureVersion != version.structure
+                || snapshot.weightVersion != version.weights) {
+            snapshot = TreeSnapshot.of(rootNodes, getDepth(), store, version.structure, version.weights);
+        }
+        return snapshot;
+    }
+
     public int getDepth() {
         return Math.max(depth, minimumDepth);
     }
 
     public TreeNode addRootNode(String label, double weight, int colorResId, int iconResId) {
-        TreeNode rootNode = TreeNode.rootNode(label, weight, colorResId, iconResId);
-        if (rootNode.getDepth() > this.depth) {
-            this.depth = rootNode.getDepth();
-        }
+        TreeNode rootNode = store != null
+                ? store.view(store.add(FlatTree.NONE, label, weight, colorResId, iconResId))
+                : TreeNode.rootNode(version, label, weight, colorResId, iconResId);
+        countDepth(rootNode.getDepth(), 1);
         this.rootNodes.add(rootNode);
+        if (searchIndex != null) {
+            searchIndex.add(rootNode);
+        }
         return rootNode;
     }
 
@@ -75,8 +209,9 @@ public class TreeAdapter {
     public TreeNode addChildNode(TreeNode parent, String label, double weight,
                                  int colorResId, int iconResId) {
         TreeNode childNode = TreeNode.childNode(parent, label, weight, colorResId, iconResId);
-        if (childNode.getDepth() > this.depth) {
-            this.depth = childNode.getDepth();
+        countDepth(childNode.getDepth(), 1);
+        if (searchIndex != null) {
+            searchIndex.add(childNode);
         }
         return childNode;
     }
@@ -86,50 +221,279 @@ public class TreeAdapter {
         return addChildNode(parent, label, 0, colorResId, iconResId);
     }
 
-    public void updateWeight(double weight, String... nodePath) throws NoSuchElementException {
-        List<TreeNode> possibleNodes = rootNodes;
-        for (int i = 0; i < nodePath.length; i++) {
-            boolean foundIt = false;
-            for (TreeNode node : possibleNodes) {
-                if (nodePath[i].equals(node.getLabel())) {
-                    foundIt = true;
-                    if (i == nodePath.length - 1) {
-                        node.setWeight(weight);
-                        return;
-                    } else {
-                        possibleNodes = node.getChildren();
-                    }
-                    break;
-                }
+    /**
+     * Removes the node and its subtree, the weights of its ancestors are left as they are.
+     * {@link TreeStructureListener}s are told right away, other listeners on the next {@link #notifyDataSetChanged()}.
+     */
+    public void removeNode(TreeNode node) {
+        checkNotRemoved(node);
+        TreeNode parent = node.getParent();
+        forget(node);
+        if (parent == null) {
+            rootNodes.remove(node);
+            rootIndex.reset();
+        }
+        node.remove();
+        for (TreeNodeChangeListener listener : listeners) {
+            if (listener instanceof TreeStructureListener) {
+                ((TreeStructureListener) listener).onNodeRemoved(node, parent);
+            }
+        }
+    }
+
+    /**
+     * Moves the node and its subtree as the last child of the new parent, or as the last root node for null.
+     * The weights are left as they are.
+     * {@link TreeStructureListener}s are told right away, other listeners on the next {@link #notifyDataSetChanged()}.
+     *
+     * @throws IllegalArgumentException if the new parent is within the subtree of the node
+     */
+    public void moveNode(TreeNode node, TreeNode newParent) {
+        checkNotRemoved(node);
+        if (newParent != null) {
+            checkNotRemoved(newParent);
+            if (newParent.isDescendantOf(node)) {
+                throw new IllegalArgumentException("Cannot move " + node + " within its own subtree");
+            }
+        }
+        TreeNode oldParent = node.getParent();
+        countSubtree(node, -1);
+        if (oldParent == null) {
+            rootNodes.remove(node);
+            rootIndex.reset();
+        }
+        node.moveTo(newParent);
+        if (newParent == null) {
+            rootNodes.add(node);
+        }
+        countSubtree(node, 1);
+        for (TreeNodeChangeListener listener : listeners) {
+            if (listener instanceof TreeStructureListener) {
+                ((TreeStructureListener) listener).onNodeMoved(node, oldParent, newParent);
             }
-            if (!foundIt) {
-                throw new NoSuchElementException("Could not find it: " + Arrays.toString(nodePath));
+        }
+    }
+
+    /**
+     * Removes every node, the nodes of a compact adapter must not be used afterwards
+     */
+    public void clear() {
+        if (store == null) {
+            // The stale nodes are then refused by removeNode and moveNode
+            for (TreeNode root : rootNodes) {
+                root.remove();
+            }
+        }
+        rootNodes.clear();
+        rootIndex.reset();
+        if (store != null) {
+            store.removeAll();
+        } else {
+            version.structure++;
+        }
+        Arrays.fill(depthCounts, 0);
+        depth = 0;
+        searchIndex = null;
+        if (weightHistory != null) {
+            weightHistory.clear();
+        }
+        for (TreeNodeChangeListener listener : listeners) {
+            if (listener instanceof TreeStructureListener) {
+                ((TreeStructureListener) listener).onTreeCleared();
             }
         }
-        throw new NoSuchElementException("Could not find it");
     }
 
-    public void addWeight(double weight, String... nodePath) throws NoSuchElementException {
-        List<TreeNode> possibleNodes = rootNodes;
-        for (int i = 0; i < nodePath.length; i++) {
-            boolean foundIt = false;
-            for (TreeNode node : possibleNodes) {
-                if (nodePath[i].equals(node.getLabel())) {
-                    foundIt = true;
-                    if (i == nodePath.length - 1) {
-                        node.setWeight(node.getWeight() + weight);
-                        return;
-                    } else {
-                        possibleNodes = node.getChildren();
-                    }
-                    break;
-                }
+    private void checkNotRemoved(TreeNode node) {
+        if (node.isRemoved()) {
+            throw new IllegalArgumentException(node + " was removed");
+        }
+    }
+
+    /**
+     * Takes the subtree out of the depth counts and of the indexes
+     */
+    private void forget(TreeNode node) {
+        ArrayDeque<TreeNode> pending = new ArrayDeque<>();
+        pending.add(node);
+        while (!pending.isEmpty()) {
+            TreeNode next = pending.poll();
+            countDepth(next.getDepth(), -1);
+            if (searchIndex != null) {
+                searchIndex.remove(next);
             }
-            if (!foundIt) {
-                throw new NoSuchElementException("Could not find it: " + Arrays.toString(nodePath));
+            if (weightHistory != null) {
+                weightHistory.forget(next);
             }
+            pending.addAll(next.getChildren());
+        }
+    }
+
+    private void countSubtree(TreeNode node, int delta) {
+        ArrayDeque<TreeNode> pending = new ArrayDeque<>();
+        pending.add(node);
+        while (!pending.isEmpty()) {
+            TreeNode next = pending.poll();
+            countDepth(next.getDepth(), delta);
+            pending.addAll(next.getChildren());
+        }
+    }
+
+    private void countDepth(int nodeDepth, int delta) {
+        if (nodeDepth >= depthCounts.length) {
+            depthCounts = Arrays.copyOf(depthCounts, Math.max(nodeDepth + 1, depthCounts.length * 2));
+        }
+        depthCounts[nodeDepth] += delta;
+        if (delta > 0 && nodeDepth > depth) {
+            depth = nodeDepth;
+        }
+        // Each ring only empties once per removal, walking down is amortised over them
+        while (depth > 0 && depthCounts[depth] <= 0) {
+            depth--;
+        }
+    }
+
+    public void updateWeight(double weight, String... nodePath) throws NoSuchElementException {
+        TreeNode node = getNode(nodePath);
+        if (weightHistory != null) {
+            weightHistory.record(node, weight - weightHistory.getLiveWeight(node), System.currentTimeMillis());
+        } else {
+            node.setWeight(weight);
+        }
+    }
+
+    public void addWeight(double weight, String... nodePath) throws NoSuchElementException {
+        addWeight(getNode(nodePath), weight, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds weight to a node, the change is kept in the weight history when it is enabled.
+     *
+     * @param timestamp the time of the change, in milliseconds
+     */
+    public void addWeight(double weight, long timestamp, String... nodePath) throws NoSuchElementException {
+        addWeight(getNode(nodePath), weight, timestamp);
+    }
+
+    public void addWeight(TreeNode node, double weight, long timestamp) {
+        if (weightHistory != null) {
+            weightHistory.record(node, weight, timestamp);
+        } else {
+            node.setWeight(node.getWeight() + weight);
+        }
+    }
+
+    /**
+     * Keeps the last timestamped weight changes of every node, so that the tree can be shown as it
+     * was at any time with {@link #scrubTo(long)} or over a time window with {@link #scrubToWindow(long, long)}.
+     * Only the changes made through the adapter (addWeight and updateWeight) are recorded.
+     *
+     * @param capacityPerNode the number of changes kept for each node, older ones are dropped
+     */
+    public void enableWeightHistory(int capacityPerNode) {
+        if (weightHistory != null) {
+            weightHistory.clear();
+        }
+        weightHistory = capacityPerNode > 0 ? new WeightHistory(capacityPerNode) : null;
+    }
+
+    public boolean hasWeightHistory() {
+        return weightHistory != null;
+    }
+
+    /**
+     * Sets every node to its weight at the given time, call {@link #notifyWeightsChanged()} to update the views.
+     * Changes recorded while scrubbing only affect the live weights.
+     */
+    public void scrubTo(long time) {
+        checkWeightHistory();
+        weightHistory.scrubTo(time);
+    }
+
+    /**
+     * Sets every node to the weight it gained between the two times,
+     * call {@link #notifyWeightsChanged()} to update the views.
+     */
+    public void scrubToWindow(long from, long to) {
+        checkWeightHistory();
+        weightHistory.scrubToWindow(from, to, getRootNodes());
+    }
+
+    /**
+     * Goes back to the live weights after scrubbing, call {@link #notifyWeightsChanged()} to update the views.
+     */
+    public void resumeLive() {
+        if (weightHistory != null) {
+            weightHistory.resumeLive();
         }
-        throw new NoSuchElementException("Could not find it");
+    }
+
+    public boolean isScrubbing() {
+        return weightHistory != null && weightHistory.isScrubbing();
+    }
+
+    public long getHistoryStartTime() {
+        checkWeightHistory();
+        return weightHistory.getStartTime();
+    }
+
+    public long getHistoryEndTime() {
+        checkWeightHistory();
+        return weightHistory.getEndTime();
+    }
+
+    private void checkWeightHistory() {
+        if (weightHistory == null) {
+            throw new IllegalStateException("The weight history is not enabled");
+        }
+    }
+
+    /**
+     * Resolves a node from its labels, starting from the root nodes.
+     * Each level is looked up through the children index rather than scanned.
+     */
+    public TreeNode getNode(String... nodePath) throws NoSuchElementException {
+        if (nodePath.length == 0) {
+            throw new NoSuchElementException("Could not find it");
+        }
+        TreeNode node = findRootNode(nodePath[0]);
+        for (int i = 1; i < nodePath.length && node != null; i++) {
+            node = node.findChild(nodePath[i]);
+        }
+        if (node == null) {
+            throw new NoSuchElementException("Could not find it: " + Arrays.toString(nodePath));
+        }
+        return node;
+    }
+
+    private TreeNode findRootNode(String label) {
+        if (store != null) {
+            int index = store.findChild(FlatTree.NONE, label);
+            return index == FlatTree.NONE ? null : store.view(index);
+        }
+        return rootIndex.find(label);
+    }
+
+    TreeNode findRootNode(char[] chars, int offset, int length) {
+        if (store != null) {
+            int index = store.findChild(FlatTree.NONE, chars, offset, length);
+            return index == FlatTree.NONE ? null : store.view(index);
+        }
+        return rootIndex.find(chars, offset, length);
+    }
+
+    /**
+     * Finds the nodes whose label contains the query, ignoring case, best matches first:
+     * exact labels, then prefixes, then word starts, then other substrings; shallower and heavier nodes first.
+     * A query with a '/' is matched against the node paths.
+     * The index is built on the first search, nodes added through the adapter afterwards are indexed as they come.
+     */
+    public List<TreeNode> search(String query, int maxResults) {
+        if (searchIndex == null) {
+            searchIndex = new LabelSearchIndex();
+            searchIndex.addAll(rootNodes);
+        }
+        return searchIndex.search(query, maxResults);
     }
 
     public ArrayList<TreeNode> getRootNodes() {
@@ -144,15 +508,39 @@ public class TreeAdapter {
     }
 
     public void resetWeights() {
-        resetWeights(rootNodes);
+        if (store != null) {
+            store.resetWeights();
+        } else {
+            resetWeights(rootNodes);
+        }
     }
 
     public void setMinimumDepth(int depth) {
-        this.minimumDepth = depth;
+        if (this.minimumDepth != depth) {
+            this.minimumDepth = depth;
+            // The rings are sized from the depth
+            version.structure++;
+        }
     }
 
     public interface TreeNodeChangeListener {
         void onDataSetChanged();
         void onWeightsChanged();
     }
+
+    /**
+     * Listeners implementing it are told about every node removed or moved as it happens,
+     * so that they can update only what changed
+     */
+    public interface TreeStructureListener extends TreeNodeChangeListener {
+
+        /**
+         * @param parent the former parent, null for a root node
+         */
+        void onNodeRemoved(TreeNode node, TreeNode parent);
+
+        void onNodeMoved(TreeNode node, TreeNode oldParent, TreeNode newParent);
+
+        void onTreeCleared();
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Aligns two versions of the same hierarchy by path and builds one tree out of them,
+ * to be shown in a single {@link TreeView}: every slice is sized by one version and colored by its change.
+ * <p>
+ * The siblings of both versions are sorted by label and merged side by side, so that every node is matched
+ * in the same pass that creates it, without looking paths up. A node missing from one version weighs 0 in it.
+ * The siblings of the compared tree come out in label order.
+ */
+public class TreeComparison {
+
+    public static final int SIZE_BY_BEFORE = 0;
+    public static final int SIZE_BY_AFTER = 1;
+
+    private static final TreeSnapshot.Node[] NO_NODES = new TreeSnapshot.Node[0];
+    private static final Comparator<TreeSnapshot.Node> BY_LABEL = new Comparator<TreeSnapshot.Node>() {
+        @Override
+        public int compare(TreeSnapshot.Node a, TreeSnapshot.Node b) {
+            return compareLabels(a.getLabel(), b.getLabel());
+        }
+    };
+
+    private final TreeSnapshot before;
+    private final TreeSnapshot after;
+    private int sizeBy;
+    private DeltaColorizer colorizer;
+    private TreeAdapter adapter;
+    // Indexed like the compact store of the adapter
+    private double[] beforeWeights;
+    private double[] afterWeights;
+
+    public TreeComparison(TreeSnapshot before, TreeSnapshot after) {
+        this.before = before;
+        this.after = after;
+        this.sizeBy = SIZE_BY_AFTER;
+        this.colorizer = new DeltaColorizer() {
+            @Override
+            public int getColorResId(double beforeWeight, double afterWeight) {
+                if (afterWeight > beforeWeight) {
+                    return android.R.color.holo_green_dark;
+                }
+                return afterWeight < beforeWeight ? android.R.color.holo_red_dark : android.R.color.darker_gray;
+            }
+        };
+    }
+
+    public TreeComparison(TreeAdapter before, TreeAdapter after) {
+        this(before.snapshot(), after.snapshot());
+    }
+
+    /**
+     * @param sizeBy {@link #SIZE_BY_AFTER} (the default) or {@link #SIZE_BY_BEFORE}
+     */
+    public TreeComparison setSizeBy(int sizeBy) {
+        this.sizeBy = sizeBy;
+        return this;
+    }
+
+    /**
+     * Gives the color of the slices from their weights in both versions,
+     * instead of green for a gain, red for a loss and gray otherwise
+     */
+    public TreeComparison setColorizer(DeltaColorizer colorizer) {
+        this.colorizer = colorizer;
+        return this;
+    }
+
+    /**
+     * Merges both versions into a new compact adapter, the icons come from the version the slices are sized by
+     */
+    public TreeAdapter compare() {
+        adapter = TreeAdapter.withCompactStore(64);
+        beforeWeights = new double[64];
+        afterWeights = new double[64];
+        merge(sortedRoots(before), sortedRoots(after), null);
+        return adapter;
+    }
+
+    /**
+     * @return the adapter built by the last {@link #compare()}
+     */
+    public TreeAdapter getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * @param node a node of the compared adapter
+     */
+    public double getBeforeWeight(TreeNode node) {
+        return beforeWeights[node.index];
+    }
+
+    public double getAfterWeight(TreeNode node) {
+        return afterWeights[node.index];
+    }
+
+    public double getDelta(TreeNode node) {
+        return afterWeights[node.index] - beforeWeights[node.index];
+    }
+
+    private void merge(TreeSnapshot.Node[] beforeNodes, TreeSnapshot.Node[] afterNodes, TreeNode parent) {
+        int i = 0;
+        int j = 0;
+        while (i < beforeNodes.length || j < afterNodes.length) {
+            int order = i == beforeNodes.length ? 1
+                    : j == afterNodes.length ? -1
+                    : compareLabels(beforeNodes[i].getLabel(), afterNodes[j].getLabel());
+            TreeSnapshot.Node beforeNode = order <= 0 ? beforeNodes[i++] : null;
+            TreeSnapshot.Node afterNode = order >= 0 ? afterNodes[j++] : null;
+            TreeNode node = add(parent, beforeNode, afterNode);
+            merge(sortedChildren(beforeNode), sortedChildren(afterNode), node);
+        }
+    }
+
+    private TreeNode add(TreeNode parent, TreeSnapshot.Node beforeNode, TreeSnapshot.Node afterNode) {
+        double beforeWeight = beforeNode == null ? 0 : beforeNode.getWeight();
+        double afterWeight = afterNode == null ? 0 : afterNode.getWeight();
+        TreeSnapshot.Node sized = sizeBy == SIZE_BY_BEFORE
+                ? (beforeNode != null ? beforeNode : afterNode)
+                : (afterNode != null ? afterNode : beforeNode);
+        double weight = sizeBy == SIZE_BY_BEFORE ? beforeWeight : afterWeight;
+        int colorResId = colorizer.getColorResId(beforeWeight, afterWeight);
+        TreeNode node = parent == null
+                ? adapter.addRootNode(sized.getLabel(), weight, colorResId, sized.getIconResId())
+                : adapter.addChildNode(parent, sized.getLabel(), weight, colorResId, sized.getIconResId());
+        if (node.index >= beforeWeights.length) {
+            beforeWeights = Arrays.copyOf(beforeWeights, Math.max(node.index + 1, beforeWeights.length * 2));
+            afterWeights = Arrays.copyOf(afterWeights, beforeWeights.length);
+        }
+        beforeWeights[node.index] = beforeWeight;
+        afterWeights[node.index] = afterWeight;
+        return node;
+    }
+
+    private static TreeSnapshot.Node[] sortedRoots(TreeSnapshot snapshot) {
+        TreeSnapshot.Node[] roots = new TreeSnapshot.Node[snapshot.getRootCount()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = snapshot.getRoot(i);
+        }
+        Arrays.sort(roots, BY_LABEL);
+        return roots;
+    }
+
+    private static TreeSnapshot.Node[] sortedChildren(TreeSnapshot.Node node) {
+        if (node == null || node.getChildCount() == 0) {
+            return NO_NODES;
+        }
+        TreeSnapshot.Node[] children = new TreeSnapshot.Node[node.getChildCount()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = node.getChild(i);
+        }
+        Arrays.sort(children, BY_LABEL);
+        return children;
+    }
+
+    private static int compareLabels(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        }
+        return b == null ? 1 : a.compareTo(b);
+    }
+
+    public interface DeltaColorizer {
+        int getColorResId(double beforeWeight, double afterWeight);
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Streaming import of path/weight records into a {@link TreeAdapter}.
+ * Records are read line by line through a fixed size buffer, either as CSV ({@code a/b/c,12.5})
+ * or as JSON lines ({@code {"path": "a/b/c", "weight": 12.5}}).
+ * Each path is resolved through the children index of the existing nodes, nodes are only created
+ * (and their labels only allocated) the first time a path is seen.
+ * The adapter listeners are notified once, when the whole input has been read.
+ */
+public class TreeImporter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final TreeAdapter adapter;
+    private final int colorResId;
+    private final int iconResId;
+    private NodeStyler nodeStyler;
+    private char pathSeparator;
+    private char fieldSeparator;
+    private String jsonPathKey;
+    private String jsonWeightKey;
+    private boolean rollUp;
+    private char[] buffer;
+    private char[] scratch;
+    private long recordCount;
+    private long skippedCount;
+    private long createdCount;
+
+    // Set while parsing a record, they point either in buffer or in scratch
+    private char[] pathChars;
+    private int pathStart;
+    private int pathEnd;
+    private double recordWeight;
+
+    public TreeImporter(TreeAdapter adapter, int colorResId, int iconResId) {
+        this.adapter = adapter;
+        this.colorResId = colorResId;
+        this.iconResId = iconResId;
+        this.nodeStyler = null;
+        this.pathSeparator = '/';
+        this.fieldSeparator = ',';
+        this.jsonPathKey = "path";
+        this.jsonWeightKey = "weight";
+        this.rollUp = true;
+    }
+
+    /**
+     * Gives the colors and icons of the created nodes, instead of the ones given in the constructor
+     */
+    public TreeImporter setNodeStyler(NodeStyler nodeStyler) {
+        this.nodeStyler = nodeStyler;
+        return this;
+    }
+
+    public TreeImporter setPathSeparator(char pathSeparator) {
+        this.pathSeparator = pathSeparator;
+        return this;
+    }
+
+    public TreeImporter setFieldSeparator(char fieldSeparator) {
+        this.fieldSeparator = fieldSeparator;
+        return this;
+    }
+
+    public TreeImporter setJsonKeys(String pathKey, String weightKey) {
+        this.jsonPathKey = pathKey;
+        this.jsonWeightKey = weightKey;
+        return this;
+    }
+
+    /**
+     * When rolling up (the default), the weight of a record is added to every node along its path,
+     * so that parents always weigh the sum of their children. Otherwise only the last node is updated.
+     */
+    public TreeImporter setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+        return this;
+    }
+
+    /**
+     * @return the number of records applied, malformed records are skipped
+     */
+    public long importCsv(Reader reader) throws IOException {
+        return read(reader, false);
+    }
+
+    public long importCsv(InputStream inputStream) throws IOException {
+        return importCsv(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+    }
+
+    /**
+     * @return the number of records applied, malformed records are skipped
+     */
+    public long importJsonLines(Reader reader) throws IOException {
+        return read(reader, true);
+    }
+
+    public long importJsonLines(InputStream inputStream) throws IOException {
+        return importJsonLines(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    private long read(Reader reader, boolean json) throws IOException {
+        if (buffer == null) {
+            buffer = new char[BUFFER_SIZE];
+        }
+        recordCount = 0;
+        skippedCount = 0;
+        createdCount = 0;
+        int start = 0;
+        int scan = 0;
+        int end = 0;
+        boolean endOfInput = false;
+        while (true) {
+            while (scan < end && buffer[scan] != '\n') {
+                scan++;
+            }
+            if (scan < end) {
+                parseRecord(start, scan, json);
+                start = ++scan;
+                continue;
+            }
+            if (endOfInput) {
+                if (start < end) {
+                    parseRecord(start, end, json);
+                }
+                break;
+            }
+            // Keep the incomplete record and fill up the rest of the buffer
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scan -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                // A single record does not fit in the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = reader.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                end += read;
+            }
+        }
+        if (createdCount > 0) {
+            adapter.notifyDataSetChanged();
+        } else if (recordCount > 0) {
+            adapter.notifyWeightsChanged();
+        }
+        return recordCount;
+    }
+
+    private void parseRecord(int from, int to, boolean json) {
+        while (from < to && buffer[from] <= ' ') {
+            from++;
+        }
+        while (to > from && buffer[to - 1] <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+        boolean parsed = json ? parseJsonRecord(from, to) : parseCsvRecord(from, to);
+        if (parsed && apply(pathChars, pathStart, pathEnd, recordWeight)) {
+            recordCount++;
+        } else {
+            skippedCount++;
+        }
+    }
+
+    private boolean parseCsvRecord(int from, int to) {
+        // The weight is the last field, so that separators can still be used in the labels
+        int separator = to - 1;
+        while (separator >= from && buffer[separator] != fieldSeparator) {
+            separator--;
+        }
+        if (separator < from) {
+            return false;
+        }
+        int pathFrom = from;
+        int pathTo = trimEnd(buffer, from, separator);
+        if (pathTo - pathFrom >= 2 && buffer[pathFrom] == '"' && buffer[pathTo - 1] == '"') {
+            pathFrom++;
+            pathTo--;
+        }
+        pathChars = buffer;
+        pathStart = pathFrom;
+        pathEnd = pathTo;
+        recordWeight = parseNumber(buffer, trimStart(buffer, separator + 1, to), to);
+        return true;
+    }
+
+    private boolean parseJsonRecord(int from, int to) {
+        int i = skipWhitespace(from, to);
+        if (i >= to || buffer[i] != '{') {
+            return false;
+        }
+        boolean hasPath = false;
+        boolean hasWeight = false;
+        i = skipWhitespace(i + 1, to);
+        while (i < to && buffer[i] == '"') {
+            int keyFrom = i + 1;
+            int keyTo = skipString(keyFrom, to);
+            if (keyTo < 0) {
+                return false;
+            }
+            i = skipWhitespace(keyTo + 1, to);
+            if (i >= to || buffer[i] != ':') {
+                return false;
+            }
+            i = skipWhitespace(i + 1, to);
+            if (i >= to) {
+                return false;
+            }
+            int valueFrom = i;
+            if (buffer[i] == '"') {
+                int valueTo = skipString(i + 1, to);
+                if (valueTo < 0) {
+                    return false;
+                }
+                if (keyEquals(jsonPathKey, keyFrom, keyTo)) {
+                    if (!unescape(i + 1, valueTo)) {
+                        return false;
+                    }
+                    hasPath = true;
+                }
+                i = valueTo + 1;
+            } else {
+                i = skipValue(i, to);
+                if (keyEquals(jsonWeightKey, keyFrom, keyTo)) {
+                    recordWeight = parseNumber(buffer, valueFrom, trimEnd(buffer, valueFrom, i));
+                    hasWeight = true;
+                }
+            }
+            i = skipWhitespace(i, to);
+            if (i < to && buffer[i] == ',') {
+                i = skipWhitespace(i + 1, to);
+            }
+        }
+        return hasPath && hasWeight;
+    }
+
+    private boolean keyEquals(String key, int from, int to) {
+        if (key.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != buffer[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the closing quote, or -1 if the string is not terminated
+     */
+    private int skipString(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\\') {
+                i++;
+            } else if (buffer[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips a number, a literal or a nested value.
+     */
+    private int skipValue(int from, int to) {
+        int nesting = 0;
+        int i = from;
+        while (i < to) {
+            char c = buffer[i];
+            if (c == '"') {
+                int close = skipString(i + 1, to);
+                i = close < 0 ? to : close + 1;
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                nesting++;
+            } else if (c == '}' || c == ']') {
+                if (nesting == 0) {
+                    return i;
+                }
+                nesting--;
+            } else if (c == ',' && nesting == 0) {
+                return i;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && buffer[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Points the current path at the string content, escaped strings are decoded in the scratch buffer.
+     *
+     * @return false if a unicode escape is cut short or has a character that is not a hex digit
+     */
+    private boolean unescape(int from, int to) {
+        int escape = from;
+        while (escape < to && buffer[escape] != '\\') {
+            escape++;
+        }
+        if (escape == to) {
+            pathChars = buffer;
+            pathStart = from;
+            pathEnd = to;
+            return true;
+        }
+        if (scratch == null || scratch.length < to - from) {
+            scratch = new char[Math.max(to - from, 256)];
+        }
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c == '\\' && i + 1 < to) {
+                c = buffer[++i];
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'u':
+                        if (i + 4 >= to) {
+                            return false;
+                        }
+                        int code = 0;
+                        for (int digit = i + 1; digit <= i + 4; digit++) {
+                            int value = hexValue(buffer[digit]);
+                            if (value < 0) {
+                                return false;
+                            }
+                            code = code << 4 | value;
+                        }
+                        c = (char) code;
+                        i += 4;
+                        break;
+                    default:
+                        // \" \\ and \/ stand for themselves
+                        break;
+                }
+            }
+            scratch[length++] = c;
+        }
+        pathChars = scratch;
+        pathStart = 0;
+        pathEnd = length;
+        return true;
+    }
+
+    /**
+     * @return the value of the hex digit, -1 for any other character
+     */
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private boolean apply(char[] chars, int from, int to, double weight) {
+        if (Double.isNaN(weight) || Double.isInfinite(weight)) {
+            return false;
+        }
+        TreeNode node = null;
+        int segmentStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || chars[i] == pathSeparator) {
+                if (i > segmentStart) {
+                    node = resolve(node, chars, segmentStart, i - segmentStart);
+                    if (rollUp) {
+                        node.setWeight(node.getWeight() + weight);
+                    }
+                }
+                segmentStart = i + 1;
+            }
+        }
+        if (node == null) {
+            return false;
+        }
+        if (!rollUp) {
+            node.setWeight(node.getWeight() + weight);
+        }
+        return true;
+    }
+
+    private TreeNode resolve(TreeNode parent, char[] chars, int offset, int length) {
+        TreeNode node = parent == null
+                ? adapter.findRootNode(chars, offset, length)
+                : parent.findChild(chars, offset, length);
+        if (node == null) {
+            String label = new String(chars, offset, length);
+            int color = nodeStyler == null ? colorResId : nodeStyler.getColorResId(parent, label);
+            int icon = nodeStyler == null ? iconResId : nodeStyler.getIconResId(parent, label);
+            node = parent == null
+                    ? adapter.addRootNode(label, 0, color, icon)
+                    : adapter.addChildNode(parent, label, 0, color, icon);
+            createdCount++;
+        }
+        return node;
+    }
+
+    private static int trimStart(char[] chars, int from, int to) {
+        while (from < to && chars[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(char[] chars, int from, int to) {
+        while (to > from && chars[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Parses a decimal number without allocating, only the numbers that cannot be converted exactly
+     * with a double multiplication or division go through {@link Double#parseDouble(String)}.
+     *
+     * @return the number or NaN if it could not be parsed
+     */
+    static double parseNumber(char[] chars, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < to && chars[i] >= '0' && chars[i] <= '9'; i++) {
+            anyDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (chars[i] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < to && chars[i] == '.') {
+            for (i++; i < to && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                anyDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (chars[i] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+            }
+        }
+        if (!anyDigit) {
+            return parseNumberSlowly(chars, from, to);
+        }
+        if (i < to && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (chars[i] == '-' || chars[i] == '+')) {
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+            int value = 0;
+            boolean anyExponentDigit = false;
+            for (; i < to && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                anyExponentDigit = true;
+                if (value < 10000) {
+                    value = value * 10 + (chars[i] - '0');
+                }
+            }
+            if (!anyExponentDigit) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (i != to || digits > 15 || exponent < -22 || exponent > 22) {
+            return parseNumberSlowly(chars, from, to);
+        }
+        double value = exponent < 0
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static double parseNumberSlowly(char[] chars, int from, int to) {
+        try {
+            return Double.parseDouble(new String(chars, from, to - from));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public interface NodeStyler {
+        int getColorResId(TreeNode parent, String label);
+
+        int getIconResId(TreeNode parent, String label);
+    }
+}
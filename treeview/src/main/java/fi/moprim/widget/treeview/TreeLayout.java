@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the start and sweep angle of every node of an adapter.
+ * The computation runs over the arrays of a {@link FlatTree}: the compact store itself,
+ * or a flattened copy of the node objects for regular adapters.
+ * Results are indexed like the flat tree, {@link #getOrder()} lists the laid out indexes,
+ * parents always before their children.
+ */
+final class TreeLayout {
+
+    private static final String TAG = "TreeLayout";
+
+    private final FlatTree flattened;
+    private FlatTree tree;
+    private TreeNodeStore store;
+    private TreeNode[] nodes;
+    // Set instead of the nodes when laid out from a snapshot
+    private TreeSnapshot.Node[] frozenNodes;
+    private float[] start;
+    private float[] sweep;
+    private int[] order;
+    private int count;
+    private int structureVersion;
+    private int weightVersion;
+    private float skipLength;
+
+    TreeLayout() {
+        this.flattened = new FlatTree(16);
+        this.nodes = new TreeNode[16];
+        this.start = new float[16];
+        this.sweep = new float[16];
+        this.order = new int[16];
+        this.count = 0;
+        this.structureVersion = -1;
+        this.weightVersion = -1;
+        this.skipLength = Float.NaN;
+    }
+
+    /**
+     * @return true if the layout is up to date with those adapter versions and skip length
+     */
+    boolean isComputed(int adapterStructureVersion, int adapterWeightVersion, float layoutSkipLength) {
+        return structureVersion == adapterStructureVersion && weightVersion == adapterWeightVersion
+                && skipLength == layoutSkipLength;
+    }
+
+    void compute(TreeAdapter adapter, float skipLength) {
+        this.structureVersion = adapter.getStructureVersion();
+        this.weightVersion = adapter.getWeightVersion();
+        this.skipLength = skipLength;
+        store = adapter.getStore();
+        if (store != null) {
+            tree = store;
+        } else {
+            tree = flattened;
+            flattened.clear();
+            flatten(adapter.getRootNodes(), FlatTree.NONE);
+        }
+        layOut(skipLength);
+    }
+
+    /**
+     * Lays out a snapshot, on any thread as long as the layout itself is not shared
+     */
+    void compute(TreeSnapshot snapshot, float skipLength) {
+        this.structureVersion = snapshot.structureVersion;
+        this.weightVersion = snapshot.weightVersion;
+        this.skipLength = skipLength;
+        store = null;
+        tree = flattened;
+        flattened.clear();
+        if (frozenNodes == null) {
+            frozenNodes = new TreeSnapshot.Node[flattened.capacity()];
+        }
+        for (int i = 0; i < snapshot.getRootCount(); i++) {
+            flatten(snapshot.getRoot(i), FlatTree.NONE);
+        }
+        layOut(skipLength);
+    }
+
+    private void layOut(float skipLength) {
+        int capacity = tree.capacity();
+        if (start.length < capacity) {
+            start = new float[capacity];
+            sweep = new float[capacity];
+            order = new int[capacity];
+        }
+        count = 0;
+        if (tree.firstRoot != FlatTree.NONE) {
+            // The radial view is over 360 degrees
+            layoutSiblings(tree.firstRoot, 0, 360, -1, skipLength);
+        }
+        // order grows while it is walked, so every group is laid out after its parent
+        for (int k = 0; k < count; k++) {
+            int index = order[k];
+            if (tree.firstChild[index] != FlatTree.NONE) {
+                layoutSiblings(tree.firstChild[index], start[index], sweep[index], tree.weight[index], skipLength);
+            }
+        }
+    }
+
+    private void flatten(List<TreeNode> nodeList, int parentIndex) {
+        for (TreeNode node : nodeList) {
+            int index = flattened.append(parentIndex, node.getWeight());
+            if (nodes.length < flattened.capacity()) {
+                nodes = Arrays.copyOf(nodes, flattened.capacity());
+            }
+            nodes[index] = node;
+            if (node.getChildren().size() > 0) {
+                flatten(node.getChildren(), index);
+            }
+        }
+    }
+
+    private void flatten(TreeSnapshot.Node node, int parentIndex) {
+        int index = flattened.append(parentIndex, node.getWeight());
+        if (frozenNodes.length < flattened.capacity()) {
+            frozenNodes = Arrays.copyOf(frozenNodes, flattened.capacity());
+        }
+        frozenNodes[index] = node;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            flatten(node.getChild(i), index);
+        }
+    }
+
+    /**
+     * Shares the sweep of the parent among the siblings in proportion to their weights.
+     * The weights are summed with compensation in double precision and every slice ends where the running total
+     * of the weights puts it, so that the rounding does not add up over thousands of siblings:
+     * the last slice ends exactly at the end of the share of the siblings.
+     */
+    private void layoutSiblings(int first, float parentStart, float parentSweep, double parentWeight,
+                                float skipLength) {
+        double[] weight = tree.weight;
+        int[] nextSibling = tree.nextSibling;
+        int depth = tree.depth[first];
+        double totalWeight = 0;
+        double compensation = 0;
+        int nonZeroNodeCounter = 0;
+        for (int i = first; i != FlatTree.NONE; i = nextSibling[i]) {
+            // Kahan summation
+            double term = weight[i] - compensation;
+            double sum = totalWeight + term;
+            compensation = (sum - totalWeight) - term;
+            totalWeight = sum;
+            if (weight[i] > 0) {
+                nonZeroNodeCounter++;
+            }
+        }
+        if (parentWeight > 0) {
+            if (parentWeight < totalWeight) {
+                Log.w(TAG, "Given weight is smaller than total weight, dismissed");
+            } else {
+                totalWeight = parentWeight;
+            }
+        }
+        // A skip length is left before every slice of the first ring and between the other slices,
+        // and taken out of the sweep that is shared
+        int gaps = depth <= 1 ? nonZeroNodeCounter : Math.max(nonZeroNodeCounter - 1, 0);
+        double gap = skipLength;
+        if (gaps * gap > parentSweep / 2) {
+            // Too many siblings for the gaps, they take half of the sweep at most
+            gap = parentSweep / (2.0 * gaps);
+        }
+        double sharedSweep = parentSweep - gaps * gap;
+        double scale = totalWeight > 0 ? sharedSweep / totalWeight : 0;
+        double runningWeight = 0;
+        compensation = 0;
+        double offset = parentStart;
+        double nodeStart = parentStart;
+        int nonZeroWeightIndex = 0;
+        for (int i = first; i != FlatTree.NONE; i = nextSibling[i]) {
+            double nodeEnd = nodeStart;
+            if (weight[i] > 0) {
+                if (depth <= 1 || nonZeroWeightIndex > 0) {
+                    offset += gap;
+                }
+                double term = weight[i] - compensation;
+                double sum = runningWeight + term;
+                compensation = (sum - runningWeight) - term;
+                runningWeight = sum;
+                nodeStart = offset + (runningWeight - weight[i]) * scale;
+                nodeEnd = offset + runningWeight * scale;
+                nonZeroWeightIndex++;
+            }
+            start[i] = (float) nodeStart;
+            sweep[i] = (float) (nodeEnd - nodeStart);
+            order[count++] = i;
+            nodeStart = nodeEnd;
+        }
+    }
+
+    float getSkipLength() {
+        return skipLength;
+    }
+
+    int[] getOrder() {
+        return order;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the size of the index space, an upper bound of the laid out indexes
+     */
+    int getCapacity() {
+        return tree == null ? 0 : tree.size;
+    }
+
+    float getStart(int index) {
+        return start[index];
+    }
+
+    float getSweep(int index) {
+        return sweep[index];
+    }
+
+    int getParent(int index) {
+        return tree.parent[index];
+    }
+
+    int getDepth(int index) {
+        return tree.depth[index];
+    }
+
+    TreeNode getNode(int index) {
+        return store != null ? store.view(index) : nodes[index];
+    }
+
+    /**
+     * Only for a layout computed from a snapshot
+     */
+    TreeSnapshot.Node getFrozenNode(int index) {
+        return frozenNodes[index];
+    }
+
+    boolean isSameNode(int index, TreeNode node) {
+        return store != null
+                ? node.store == store && node.index == index && node.generation == store.generation[index]
+                : nodes[index] == node;
+    }
+}
@@ -13,6 +13,7 @@
  */
 package fi.moprim.widget.treeview;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,8 +30,22 @@ public class TreeNode {
     private double weight;
     private int colorResId;
     private int iconResId;
+    private ChildIndex childIndex;
+    // Set on the top node of a removed subtree
+    private boolean removed;
+    // Shared by the whole tree
+    private final TreeVersion version;
+    // The node as of the last snapshot, null once it or its subtree changed
+    TreeSnapshot.Node frozen;
+    // Set when the node is a view over a compact store, the fields above are then unused
+    final TreeNodeStore store;
+    final int index;
+    // The generation of the index in the store when the view was made
+    final int generation;
 
-    private TreeNode(TreeNode parent, List<TreeNode> children, String label, int depth, double weight, int colorResId, int iconResId) {
+    private TreeNode(TreeVersion version, TreeNode parent, List<TreeNode> children, String label, int depth,
+                     double weight, int colorResId, int iconResId) {
+        this.version = version;
         this.parent = parent;
         this.children = children;
         this.label = label;
@@ -38,51 +53,200 @@ public class TreeNode {
         this.weight = weight;
         this.colorResId = colorResId;
         this.iconResId = iconResId;
+        this.store = null;
+        this.index = FlatTree.NONE;
+        this.generation = 0;
+    }
+
+    TreeNode(TreeNodeStore store, int index) {
+        this.version = store.version;
+        this.store = store;
+        this.index = index;
+        this.generation = store.generation[index];
     }
 
     public static TreeNode rootNode(String label, double weight, int colorResId, int iconResId) {
-        return new TreeNode(null, new ArrayList<TreeNode>(),
+        return rootNode(new TreeVersion(), label, weight, colorResId, iconResId);
+    }
+
+    static TreeNode rootNode(TreeVersion version, String label, double weight, int colorResId, int iconResId) {
+        version.structure++;
+        return new TreeNode(version, null, new ArrayList<TreeNode>(),
                 label, 1, weight, colorResId, iconResId);
     }
 
     public static TreeNode childNode(TreeNode parent,
                                      String label, double weight, int colorResId, int iconResId) {
-        TreeNode childNode = new TreeNode(parent, new ArrayList<TreeNode>(),
+        if (parent.store != null) {
+            return parent.store.view(parent.store.add(parent.index, label, weight, colorResId, iconResId));
+        }
+        TreeNode childNode = new TreeNode(parent.version, parent, new ArrayList<TreeNode>(),
                 label, parent.depth + 1, weight, colorResId, iconResId);
         parent.children.add(childNode);
+        parent.thaw();
+        parent.version.structure++;
         return childNode;
     }
 
     public TreeNode getParent() {
+        if (store != null) {
+            int parentIndex = store.parent[index];
+            return parentIndex < 0 ? null : store.view(parentIndex);
+        }
         return parent;
     }
 
     public List<TreeNode> getChildren() {
+        if (store != null) {
+            return store.new ChildList(index);
+        }
         return children;
     }
 
+    TreeNode findChild(String label) {
+        if (store != null) {
+            int child = store.findChild(index, label);
+            return child == FlatTree.NONE ? null : store.view(child);
+        }
+        return getChildIndex().find(label);
+    }
+
+    TreeNode findChild(char[] chars, int offset, int length) {
+        if (store != null) {
+            int child = store.findChild(index, chars, offset, length);
+            return child == FlatTree.NONE ? null : store.view(child);
+        }
+        return getChildIndex().find(chars, offset, length);
+    }
+
+    /**
+     * Takes the node and its subtree out of the tree, a root node must also be taken out of the adapter roots
+     */
+    void remove() {
+        if (store != null) {
+            store.remove(index);
+            return;
+        }
+        if (parent != null) {
+            parent.children.remove(this);
+            parent.resetChildIndex();
+            parent.thaw();
+        }
+        parent = null;
+        removed = true;
+        version.structure++;
+    }
+
+    /**
+     * Moves the node and its subtree under the new parent, or to the roots for null
+     */
+    void moveTo(TreeNode newParent) {
+        if (store != null) {
+            store.move(index, newParent == null ? FlatTree.NONE : newParent.index);
+            return;
+        }
+        remove();
+        removed = false;
+        parent = newParent;
+        if (newParent != null) {
+            newParent.children.add(this);
+            newParent.thaw();
+        }
+        setDepth(newParent == null ? 1 : newParent.depth + 1);
+    }
+
+    /**
+     * @return true if the node or one of its ancestors was removed
+     */
+    boolean isRemoved() {
+        if (store != null) {
+            return store.isRemoved(index, generation);
+        }
+        for (TreeNode node = this; node != null; node = node.parent) {
+            if (node.removed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the other node is this node or one of its ancestors
+     */
+    boolean isDescendantOf(TreeNode other) {
+        for (TreeNode node = this; node != null; node = node.getParent()) {
+            if (node.equals(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the frozen node of this node and of its ancestors, the next snapshot freezes them again
+     */
+    private void thaw() {
+        // The ancestors of a node that is not frozen are not frozen either
+        for (TreeNode node = this; node != null && node.frozen != null; node = node.parent) {
+            node.frozen = null;
+        }
+    }
+
+    private void setDepth(int depth) {
+        this.depth = depth;
+        ArrayDeque<TreeNode> pending = new ArrayDeque<>(children);
+        while (!pending.isEmpty()) {
+            TreeNode node = pending.poll();
+            node.depth = node.parent.depth + 1;
+            pending.addAll(node.children);
+        }
+    }
+
+    private void resetChildIndex() {
+        if (childIndex != null) {
+            childIndex.reset();
+        }
+    }
+
+    private ChildIndex getChildIndex() {
+        if (childIndex == null) {
+            childIndex = new ChildIndex(children);
+        }
+        return childIndex;
+    }
+
     public String getLabel() {
-        return label;
+        return store != null ? store.getLabel(index) : label;
     }
 
     public int getDepth() {
-        return depth;
+        return store != null ? store.depth[index] : depth;
     }
 
     public double getWeight() {
-        return weight;
+        return store != null ? store.weight[index] : weight;
     }
 
     public void setWeight(double weight) {
-        this.weight = weight;
+        if (weight == getWeight()) {
+            return;
+        }
+        version.weights++;
+        if (store != null) {
+            store.weight[index] = weight;
+            store.thaw(index);
+        } else {
+            this.weight = weight;
+            thaw();
+        }
     }
 
     public int getColorResId() {
-        return colorResId;
+        return store != null ? store.colorResId[index] : colorResId;
     }
 
     public int getIconResId() {
-        return iconResId;
+        return store != null ? store.iconResId[index] : iconResId;
     }
 
     public String getPath() {
@@ -93,14 +257,29 @@ public class TreeNode {
         }
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (store == null) {
+            return this == o;
+        }
+        // Views over the same store index are the same node, unless the index was reused in between
+        return o instanceof TreeNode && ((TreeNode) o).store == store && ((TreeNode) o).index == index
+                && ((TreeNode) o).generation == generation;
+    }
+
+    @Override
+    public int hashCode() {
+        return store == null ? System.identityHashCode(this) : System.identityHashCode(store) * 31 + index;
+    }
+
     @Override
     public String toString() {
         return "TreeNode{" +
-                "label='" + label + '\'' +
-                ", depth=" + depth +
-                ", weight=" + weight +
-                ", colorResId=" + colorResId +
-                ", iconResId=" + iconResId +
+                "label='" + getLabel() + '\'' +
+                ", depth=" + getDepth() +
+                ", weight=" + getWeight() +
+                ", colorResId=" + getColorResId() +
+                ", iconResId=" + getIconResId() +
                 '}';
     }
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact backing store for large trees.
+ * Every node attribute lives in a primitive array and labels are deduplicated in a label table,
+ * {@link TreeNode} instances are only views over an index of the store.
+ * Children are looked up by (parent, label) through a single open addressing table.
+ * The indexes of removed subtrees are reused by the next nodes added, a generation per index tells
+ * the views of the removed nodes apart from the views of the new ones.
+ */
+final class TreeNodeStore extends FlatTree {
+
+    int[] childCount;
+    int[] labelId;
+    int[] colorResId;
+    int[] iconResId;
+    // Incremented every time the index is freed
+    int[] generation;
+    final TreeVersion version;
+    // The nodes as of the last snapshot, null until one is taken
+    TreeSnapshot.Node[] frozen;
+
+    private String[] labels;
+    private int labelCount;
+    // Open addressing tables storing index + 1, 0 marks an empty slot
+    private int[] labelTable;
+    private int[] childTable;
+    // Stack of the indexes of the removed nodes
+    private int[] free;
+    private int freeCount;
+
+    TreeNodeStore(int capacity) {
+        super(capacity);
+        capacity = capacity();
+        this.childCount = new int[capacity];
+        this.labelId = new int[capacity];
+        this.colorResId = new int[capacity];
+        this.iconResId = new int[capacity];
+        this.generation = new int[capacity];
+        this.labels = new String[64];
+        this.labelCount = 0;
+        this.labelTable = new int[128];
+        this.childTable = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.free = new int[16];
+        this.freeCount = 0;
+        this.version = new TreeVersion();
+    }
+
+    @Override
+    void grow(int capacity) {
+        super.grow(capacity);
+        childCount = Arrays.copyOf(childCount, capacity);
+        labelId = Arrays.copyOf(labelId, capacity);
+        colorResId = Arrays.copyOf(colorResId, capacity);
+        iconResId = Arrays.copyOf(iconResId, capacity);
+        generation = Arrays.copyOf(generation, capacity);
+        if (frozen != null) {
+            frozen = Arrays.copyOf(frozen, capacity);
+        }
+    }
+
+    @Override
+    int allocate() {
+        return freeCount > 0 ? free[--freeCount] : super.allocate();
+    }
+
+    int add(int parentIndex, String label, double nodeWeight, int nodeColorResId, int nodeIconResId) {
+        int index = append(parentIndex, nodeWeight);
+        version.structure++;
+        childCount[index] = 0;
+        if (parentIndex != NONE) {
+            childCount[parentIndex]++;
+        }
+        thaw(parentIndex);
+        labelId[index] = internLabel(label);
+        colorResId[index] = nodeColorResId;
+        iconResId[index] = nodeIconResId;
+        if (size * 2 > childTable.length) {
+            rehashChildren(childTable.length * 2);
+        } else {
+            insertChild(index);
+        }
+        return index;
+    }
+
+    /**
+     * Takes the node and its subtree out of the tree, their indexes are reused by the next nodes added
+     */
+    void remove(int index) {
+        detach(index);
+        int first = freeCount;
+        push(index);
+        // The stack is walked as it grows, so that the whole subtree ends up on it
+        for (int k = first; k < freeCount; k++) {
+            for (int child = firstChild[free[k]]; child != NONE; child = nextSibling[child]) {
+                push(child);
+            }
+        }
+        for (int k = first; k < freeCount; k++) {
+            int i = free[k];
+            if (i != index) {
+                deleteChild(i);
+            }
+            parent[i] = REMOVED;
+            generation[i]++;
+            if (frozen != null) {
+                frozen[i] = null;
+            }
+        }
+        version.structure++;
+    }
+
+    /**
+     * Moves the node and its subtree as the last child of the new parent, or as the last root node for {@link #NONE}
+     */
+    void move(int index, int newParentIndex) {
+        detach(index);
+        link(index, newParentIndex);
+        if (newParentIndex != NONE) {
+            childCount[newParentIndex]++;
+        }
+        thaw(newParentIndex);
+        updateDepths(index);
+        insertChild(index);
+        version.structure++;
+    }
+
+    /**
+     * Takes the node out of its siblings and out of the lookup table
+     */
+    private void detach(int index) {
+        int parentIndex = parent[index];
+        thaw(parentIndex);
+        boolean found = deleteChild(index);
+        unlink(index);
+        if (parentIndex != NONE) {
+            childCount[parentIndex]--;
+        }
+        if (found) {
+            // The next sibling with the same label is found in its place
+            for (int i = firstOf(parentIndex); i != NONE; i = nextSibling[i]) {
+                if (labelId[i] == labelId[index]) {
+                    insertChild(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void push(int index) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = index;
+    }
+
+    /**
+     * @param nodeGeneration the generation of the index when the view was made
+     */
+    boolean isRemoved(int index, int nodeGeneration) {
+        // A removed subtree is freed as a whole, cleared indexes are only past the size until they are reused
+        return index >= size || generation[index] != nodeGeneration;
+    }
+
+    /**
+     * Drops the frozen node of the index and of its ancestors, the next snapshot freezes them again
+     */
+    void thaw(int index) {
+        if (frozen == null) {
+            return;
+        }
+        // The ancestors of a node that is not frozen are not frozen either
+        for (int i = index; i >= 0 && frozen[i] != null; i = parent[i]) {
+            frozen[i] = null;
+        }
+    }
+
+    /**
+     * Sets every weight to 0, the frozen nodes hold the old weights so they are all dropped
+     */
+    void resetWeights() {
+        Arrays.fill(weight, 0, size, 0);
+        if (frozen != null) {
+            Arrays.fill(frozen, null);
+        }
+        version.weights++;
+    }
+
+    void removeAll() {
+        for (int i = 0; i < size; i++) {
+            generation[i]++;
+        }
+        clear();
+        freeCount = 0;
+        Arrays.fill(childTable, 0);
+        if (frozen != null) {
+            Arrays.fill(frozen, null);
+        }
+        version.structure++;
+    }
+
+    TreeNode view(int index) {
+        return new TreeNode(this, index);
+    }
+
+    String getLabel(int index) {
+        return labels[labelId[index]];
+    }
+
+    int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * @return the index of the first child with that label, or {@link #NONE}
+     */
+    int findChild(int parentIndex, String label) {
+        int id = findLabel(label, null, 0, label == null ? 0 : label.length(), hashOf(label));
+        return id == NONE ? NONE : findChild(parentIndex, id);
+    }
+
+    int findChild(int parentIndex, char[] chars, int offset, int length) {
+        int id = findLabel(null, chars, offset, length, ChildIndex.hash(chars, offset, length));
+        return id == NONE ? NONE : findChild(parentIndex, id);
+    }
+
+    private int findChild(int parentIndex, int id) {
+        int mask = childTable.length - 1;
+        for (int slot = mix(parentIndex, id) & mask; childTable[slot] != 0; slot = (slot + 1) & mask) {
+            int index = childTable[slot] - 1;
+            if (parent[index] == parentIndex && labelId[index] == id) {
+                return index;
+            }
+        }
+        return NONE;
+    }
+
+    private void insertChild(int index) {
+        int mask = childTable.length - 1;
+        int slot = mix(parent[index], labelId[index]) & mask;
+        while (childTable[slot] != 0) {
+            int other = childTable[slot] - 1;
+            // Keep the first child with a given label
+            if (parent[other] == parent[index] && labelId[other] == labelId[index]) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        childTable[slot] = index + 1;
+    }
+
+    /**
+     * Empties the slot of the node, the entries after it are shifted back so that no probe sequence is broken
+     *
+     * @return false if the node was not in the table, a later sibling with the same label
+     */
+    private boolean deleteChild(int index) {
+        int mask = childTable.length - 1;
+        int hole = mix(parent[index], labelId[index]) & mask;
+        while (childTable[hole] != index + 1) {
+            if (childTable[hole] == 0) {
+                return false;
+            }
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; childTable[slot] != 0; slot = (slot + 1) & mask) {
+            int other = childTable[slot] - 1;
+            int home = mix(parent[other], labelId[other]) & mask;
+            // The entry moves back unless its home slot is between the hole and itself
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                childTable[hole] = childTable[slot];
+                hole = slot;
+            }
+        }
+        childTable[hole] = 0;
+        return true;
+    }
+
+    /**
+     * Walks the tree from the roots, the removed nodes are skipped and the siblings come in order,
+     * so that the first child with a given label is kept even when a later one has a lower index
+     */
+    private void rehashChildren(int capacity) {
+        childTable = new int[capacity];
+        int i = firstRoot;
+        while (i != NONE) {
+            insertChild(i);
+            if (firstChild[i] != NONE) {
+                i = firstChild[i];
+                continue;
+            }
+            while (i != NONE && nextSibling[i] == NONE) {
+                i = parent[i];
+            }
+            i = i == NONE ? NONE : nextSibling[i];
+        }
+    }
+
+    private int internLabel(String label) {
+        int hash = hashOf(label);
+        int id = findLabel(label, null, 0, label == null ? 0 : label.length(), hash);
+        if (id != NONE) {
+            return id;
+        }
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        id = labelCount++;
+        labels[id] = label;
+        if (labelCount * 2 > labelTable.length) {
+            labelTable = new int[labelTable.length * 2];
+            for (int i = 0; i < labelCount; i++) {
+                insertLabel(i, hashOf(labels[i]));
+            }
+        } else {
+            insertLabel(id, hash);
+        }
+        return id;
+    }
+
+    private void insertLabel(int id, int hash) {
+        int mask = labelTable.length - 1;
+        int slot = mix(hash, 0) & mask;
+        while (labelTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        labelTable[slot] = id + 1;
+    }
+
+    private int findLabel(String label, char[] chars, int offset, int length, int hash) {
+        int mask = labelTable.length - 1;
+        for (int slot = mix(hash, 0) & mask; labelTable[slot] != 0; slot = (slot + 1) & mask) {
+            int id = labelTable[slot] - 1;
+            String candidate = labels[id];
+            if (label != null || chars != null) {
+                if (candidate != null && candidate.length() == length && regionEquals(candidate, label, chars, offset)) {
+                    return id;
+                }
+            } else if (candidate == null) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private static boolean regionEquals(String candidate, String label, char[] chars, int offset) {
+        if (label != null) {
+            return candidate.equals(label);
+        }
+        for (int i = 0; i < candidate.length(); i++) {
+            if (candidate.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hashOf(String label) {
+        return label == null ? 0 : label.hashCode();
+    }
+
+    private static int mix(int a, int b) {
+        int h = a * 0x9E3779B9 + b;
+        h ^= (h >>> 16);
+        return h * 0x45d9f3b;
+    }
+
+    /**
+     * Read only list view over the children of a node, or over the root nodes for {@link #NONE}.
+     * Sequential access walks the sibling links, random access remembers the last position.
+     */
+    final class ChildList extends AbstractList<TreeNode> {
+
+        private final int parentIndex;
+        private int cursorPosition;
+        private int cursorIndex;
+
+        ChildList(int parentIndex) {
+            this.parentIndex = parentIndex;
+            this.cursorPosition = 0;
+            this.cursorIndex = firstOf(parentIndex);
+        }
+
+        @Override
+        public TreeNode get(int position) {
+            if (position < 0 || position >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + position + ", size: " + size());
+            }
+            if (position < cursorPosition || cursorIndex == NONE) {
+                cursorPosition = 0;
+                cursorIndex = firstOf(parentIndex);
+            }
+            while (cursorPosition < position) {
+                cursorIndex = nextSibling[cursorIndex];
+                cursorPosition++;
+            }
+            return view(cursorIndex);
+        }
+
+        @Override
+        public int size() {
+            if (parentIndex != NONE) {
+                return childCount[parentIndex];
+            }
+            int count = 0;
+            for (int i = firstRoot; i != NONE; i = nextSibling[i]) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public Iterator<TreeNode> iterator() {
+            return new Iterator<TreeNode>() {
+                private int next = firstOf(parentIndex);
+
+                @Override
+                public boolean hasNext() {
+                    return next != NONE;
+                }
+
+                @Override
+                public TreeNode next() {
+                    if (next == NONE) {
+                        throw new NoSuchElementException();
+                    }
+                    int index = next;
+                    next = nextSibling[index];
+                    return view(index);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
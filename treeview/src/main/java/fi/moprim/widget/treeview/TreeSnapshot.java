@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.List;
+
+/**
+ * Immutable version of the tree of an adapter, see {@link TreeAdapter#snapshot()}.
+ * Snapshots never change once taken, so any thread can read them without locking.
+ * A subtree that did not change between two snapshots is the same {@link Node} instance in both,
+ * so that comparing two versions can skip it.
+ */
+public final class TreeSnapshot {
+
+    private final Node[] roots;
+    private final int depth;
+    final int structureVersion;
+    final int weightVersion;
+
+    private TreeSnapshot(Node[] roots, int depth, int structureVersion, int weightVersion) {
+        this.roots = roots;
+        this.depth = depth;
+        this.structureVersion = structureVersion;
+        this.weightVersion = weightVersion;
+    }
+
+    /**
+     * Freezes the nodes that changed since the last snapshot of the tree, the others are shared
+     */
+    static TreeSnapshot of(List<TreeNode> rootNodes, int depth, TreeNodeStore store,
+                           int structureVersion, int weightVersion) {
+        Node[] roots = new Node[rootNodes.size()];
+        for (int i = 0; i < roots.length; i++) {
+            TreeNode root = rootNodes.get(i);
+            roots[i] = store != null ? freeze(store, root.index) : freeze(root);
+        }
+        return new TreeSnapshot(roots, depth, structureVersion, weightVersion);
+    }
+
+    private static Node freeze(TreeNode node) {
+        if (node.frozen == null) {
+            List<TreeNode> children = node.getChildren();
+            Node[] frozenChildren = new Node[children.size()];
+            for (int i = 0; i < frozenChildren.length; i++) {
+                frozenChildren[i] = freeze(children.get(i));
+            }
+            node.frozen = new Node(node.getLabel(), node.getWeight(), node.getColorResId(), node.getIconResId(),
+                    frozenChildren);
+        }
+        return node.frozen;
+    }
+
+    private static Node freeze(TreeNodeStore store, int index) {
+        if (store.frozen == null) {
+            store.frozen = new Node[store.capacity()];
+        }
+        if (store.frozen[index] == null) {
+            Node[] frozenChildren = new Node[store.childCount[index]];
+            int i = 0;
+            for (int child = store.firstChild[index]; child != FlatTree.NONE; child = store.nextSibling[child]) {
+                frozenChildren[i++] = freeze(store, child);
+            }
+            store.frozen[index] = new Node(store.getLabel(index), store.weight[index], store.colorResId[index],
+                    store.iconResId[index], frozenChildren);
+        }
+        return store.frozen[index];
+    }
+
+    public int getRootCount() {
+        return roots.length;
+    }
+
+    public Node getRoot(int i) {
+        return roots[i];
+    }
+
+    /**
+     * @return the depth of the tree when the snapshot was taken, at least the minimum depth of the adapter
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the node at the end of the path of labels, or null
+     */
+    public Node getNode(String... nodePath) {
+        Node node = null;
+        for (int i = 0; i < nodePath.length; i++) {
+            node = i == 0 ? find(roots, nodePath[0]) : find(node.children, nodePath[i]);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private static Node find(Node[] nodes, String label) {
+        for (Node node : nodes) {
+            if (label == null ? node.label == null : label.equals(node.label)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A node as it was when frozen. Its depth is not part of it, so that a moved subtree is still shared.
+     */
+    public static final class Node {
+
+        private final String label;
+        private final double weight;
+        private final int colorResId;
+        private final int iconResId;
+        private final Node[] children;
+
+        private Node(String label, double weight, int colorResId, int iconResId, Node[] children) {
+            this.label = label;
+            this.weight = weight;
+            this.colorResId = colorResId;
+            this.iconResId = iconResId;
+            this.children = children;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public int getColorResId() {
+            return colorResId;
+        }
+
+        public int getIconResId() {
+            return iconResId;
+        }
+
+        public int getChildCount() {
+            return children.length;
+        }
+
+        public Node getChild(int i) {
+            return children[i];
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.animation.AccelerateDecelerateInterpolator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Radial tree drawn and animated on its own thread, for trees too large to be drawn with the rest of the UI.
+ * It takes the same adapter and attributes as {@link TreeView} and draws the same slices.
+ * The main thread only takes a {@link TreeSnapshot} of the adapter when it changes,
+ * the render thread lays it out and draws it.
+ * Selection, search highlights and rotation are left to {@link TreeView}.
+ */
+public class TreeSurfaceView extends TextureView implements TextureView.SurfaceTextureListener,
+        TreeAdapter.TreeNodeChangeListener {
+
+    private static final String TAG = "TreeSurfaceView";
+    // Same as the slice animators of the tree view
+    private static final long ANIMATION_DURATION_NANOS = 300000000L;
+    private final boolean doAnimate;
+    private final float innerRadiusWeight;
+    private final float skipLength;
+    private final boolean adaptiveRings;
+    private final int colorIcons;
+    private final boolean addShadow;
+    private final float shadowOffset;
+    private final int shadowColor;
+    private final int labelMode;
+    private final Paint labelPaint;
+    private final List<TreeView.OnClickListener> listeners;
+    private final GestureDetector gestureDetector;
+    private TreeAdapter adapter;
+    private int width;
+    private int height;
+    private SliceCache sliceCache;
+    // What the render thread was last given
+    private TreeSnapshot tree;
+    private RenderThread renderThread;
+    // The slices last laid out by the render thread, for the hit tests
+    private volatile Hits hits;
+
+    public TreeSurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        TypedArray a = context.getTheme().obtainStyledAttributes(
+                attrs,
+                R.styleable.TreeView,
+                0, 0);
+        float labelTextSize;
+        int labelColor;
+        try {
+            doAnimate = a.getBoolean(R.styleable.TreeView_animate, true);
+            innerRadiusWeight = a.getFloat(R.styleable.TreeView_inner_radius_weight, 2f);
+            skipLength = a.getFloat(R.styleable.TreeView_skip_length, 1f);
+            adaptiveRings = a.getBoolean(R.styleable.TreeView_adaptive_rings, false);
+            colorIcons = a.getResourceId(R.styleable.TreeView_color_icons, -1);
+            addShadow = a.getBoolean(R.styleable.TreeView_shadow, true);
+            shadowOffset = a.getFloat(R.styleable.TreeView_shadow_offset, 15f);
+            shadowColor = ContextCompat.getColor(context,
+                    a.getResourceId(R.styleable.TreeView_shadow_color, android.R.color.darker_gray));
+            labelMode = a.getInt(R.styleable.TreeView_label_mode, DrawableTreeNode.LABEL_NONE);
+            labelTextSize = a.getDimension(R.styleable.TreeView_label_text_size,
+                    12f * context.getResources().getDisplayMetrics().scaledDensity);
+            labelColor = a.getResourceId(R.styleable.TreeView_label_color, android.R.color.white);
+        } finally {
+            a.recycle();
+        }
+        this.labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        labelPaint.setTextSize(labelTextSize);
+        labelPaint.setColor(ContextCompat.getColor(context, labelColor));
+        this.listeners = new ArrayList<>();
+        this.gestureDetector = new GestureDetector(context, new GestureDetector.OnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent motionEvent) {
+                return true;
+            }
+
+            @Override
+            public void onShowPress(MotionEvent motionEvent) {
+
+            }
+
+            @Override
+            public boolean onSingleTapUp(MotionEvent motionEvent) {
+                performSliceClick(motionEvent.getX(), motionEvent.getY());
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1) {
+                return false;
+            }
+
+            @Override
+            public void onLongPress(MotionEvent motionEvent) {
+
+            }
+
+            @Override
+            public boolean onFling(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1) {
+                return false;
+            }
+        });
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+    }
+
+    public void addOnClickListener(TreeView.OnClickListener listener) {
+        listeners.add(listener);
+    }
+
+    public void setTreeMapAdapter(TreeAdapter adapter) {
+        if (this.adapter != null) {
+            this.adapter.removeTreeNodeChangeListener(this);
+        }
+        this.adapter = adapter;
+        this.adapter.addTreeNodeChangeListener(this);
+        this.sliceCache = adapter.getSliceCache(getContext());
+        publish(false);
+    }
+
+    public TreeAdapter getTreeAdapter() {
+        return adapter;
+    }
+
+    @Override
+    public void onDataSetChanged() {
+        publish(false);
+    }
+
+    @Override
+    public void onWeightsChanged() {
+        publish(doAnimate);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        this.width = w;
+        this.height = h;
+        publish(false);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return gestureDetector.onTouchEvent(event);
+    }
+
+    private void performSliceClick(float x, float y) {
+        Hits laidOut = hits;
+        int position = laidOut == null ? -1 : laidOut.slices.findSliceAt(x, y);
+        TreeNode node = position == -1 ? null : findNode(laidOut, position);
+        for (TreeView.OnClickListener listener : listeners) {
+            listener.onNodeClicked(node);
+        }
+    }
+
+    /**
+     * @return the node of the adapter with the same path as the slice, null if it was removed since
+     */
+    private TreeNode findNode(Hits laidOut, int position) {
+        int length = 0;
+        for (int p = position; p != -1; p = laidOut.parents[p]) {
+            length++;
+        }
+        String[] path = new String[length];
+        for (int p = position; p != -1; p = laidOut.parents[p]) {
+            path[--length] = laidOut.nodes[p].getLabel();
+        }
+        try {
+            return adapter.getNode(path);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands the latest version of the tree over to the render thread, only what changed since the last one is copied
+     */
+    private void publish(boolean animate) {
+        if (adapter == null || width == 0 || height == 0) {
+            return;
+        }
+        tree = adapter.snapshot();
+        if (renderThread != null) {
+            renderThread.show(tree, sliceCache, width, height, animate);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int w, int h) {
+        renderThread = new RenderThread(new Surface(surfaceTexture));
+        renderThread.start();
+        if (tree != null) {
+            renderThread.show(tree, sliceCache, width, height, false);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int w, int h) {
+        // The new snapshot comes with onSizeChanged
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+        if (renderThread != null) {
+            // Waits for the frame being drawn, nothing is drawn on the surface once it returns
+            renderThread.finish();
+            renderThread = null;
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+
+    }
+
+    /**
+     * Slices as laid out by the render thread, with their nodes and the position of their parent
+     */
+    private static final class Hits {
+
+        final SliceSnapshot slices;
+        final TreeSnapshot.Node[] nodes;
+        final int[] parents;
+
+        Hits(SliceSnapshot slices, TreeSnapshot.Node[] nodes, int[] parents) {
+            this.slices = slices;
+            this.nodes = nodes;
+            this.parents = parents;
+        }
+    }
+
+    /**
+     * Lays out and draws the latest version of the tree on every frame it changes, animating the angles
+     * from the previous one when they have the same slices. Only immutable snapshots are shared with the main thread.
+     */
+    private final class RenderThread extends HandlerThread implements Choreographer.FrameCallback {
+
+        private final Surface surface;
+        private final SliceRenderer renderer;
+        private final AccelerateDecelerateInterpolator interpolator;
+        private final Runnable scheduleFrame;
+        private final TreeLayout layout;
+        private final LabelCache labelCache;
+        private int[] positions;
+        private Handler handler;
+        private Choreographer choreographer;
+        private boolean frameScheduled;
+        // Guarded by this
+        private TreeSnapshot pending;
+        private SliceCache pendingSliceCache;
+        private int pendingWidth;
+        private int pendingHeight;
+        private boolean pendingAnimate;
+        // Render thread only
+        private SliceSnapshot to;
+        private SliceSnapshot from;
+        private SliceSnapshot frame;
+        private long animationStart;
+
+        RenderThread(Surface surface) {
+            super(TAG);
+            this.surface = surface;
+            this.renderer = new SliceRenderer();
+            this.interpolator = new AccelerateDecelerateInterpolator();
+            this.layout = new TreeLayout();
+            this.labelCache = new LabelCache();
+            this.positions = new int[0];
+            this.scheduleFrame = new Runnable() {
+                @Override
+                public void run() {
+                    scheduleFrame();
+                }
+            };
+        }
+
+        @Override
+        protected void onLooperPrepared() {
+            // The choreographer of the render thread's own looper
+            choreographer = Choreographer.getInstance();
+        }
+
+        @Override
+        public void start() {
+            super.start();
+            handler = new Handler(getLooper());
+        }
+
+        void show(TreeSnapshot snapshot, SliceCache sliceCache, int width, int height, boolean animate) {
+            synchronized (this) {
+                pending = snapshot;
+                pendingSliceCache = sliceCache;
+                pendingWidth = width;
+                pendingHeight = height;
+                pendingAnimate = animate;
+            }
+            handler.post(scheduleFrame);
+        }
+
+        void finish() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    choreographer.removeFrameCallback(RenderThread.this);
+                    surface.release();
+                    getLooper().quit();
+                }
+            });
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void scheduleFrame() {
+            if (!frameScheduled) {
+                frameScheduled = true;
+                choreographer.postFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            takePending(frameTimeNanos);
+            if (to == null) {
+                return;
+            }
+            SliceSnapshot drawn = to;
+            if (from != null) {
+                float fraction = (frameTimeNanos - animationStart) / (float) ANIMATION_DURATION_NANOS;
+                if (fraction < 1) {
+                    frame.interpolate(from, to, interpolator.getInterpolation(fraction));
+                    drawn = frame;
+                    scheduleFrame();
+                } else {
+                    from = null;
+                }
+            }
+            draw(drawn);
+        }
+
+        private void takePending(long frameTimeNanos) {
+            TreeSnapshot snapshot;
+            SliceCache sliceCache;
+            int width;
+            int height;
+            boolean animate;
+            synchronized (this) {
+                if (pending == null) {
+                    return;
+                }
+                snapshot = pending;
+                sliceCache = pendingSliceCache;
+                width = pendingWidth;
+                height = pendingHeight;
+                animate = pendingAnimate;
+                pending = null;
+            }
+            // Laid out without the lock, the main thread never waits for it
+            SliceSnapshot next = layOut(snapshot, sliceCache, width, height);
+            if (animate && to != null && to.hasSameSlices(next)) {
+                // An animation on its way goes on from where the slices are now
+                from = from == null ? to : frame.copyAngles();
+                frame = next.copyAngles();
+                animationStart = frameTimeNanos;
+            } else {
+                from = null;
+            }
+            to = next;
+        }
+
+        /**
+         * Same rings as the tree view without padding
+         */
+        private SliceSnapshot layOut(TreeSnapshot snapshot, SliceCache sliceCache, int width, int height) {
+            int depth = snapshot.getDepth();
+            float layerHeight = (Math.min(width, height) - depth * skipLength) / ((depth + innerRadiusWeight) * 2);
+            layout.compute(snapshot, skipLength);
+            int count = layout.getCount();
+            // A new one every time, the snapshots it goes to are read by the hit tests
+            RingRadii rings = new RingRadii();
+            if (adaptiveRings) {
+                rings.setAdaptive(layout, depth, innerRadiusWeight * layerHeight, layerHeight);
+            } else {
+                rings.setUniform(depth, innerRadiusWeight * layerHeight, layerHeight);
+            }
+            SliceSnapshot slices = new SliceSnapshot(width, height, rings,
+                    0.75f * layerHeight, labelMode, labelPaint, addShadow && count > 0, shadowOffset, shadowColor,
+                    count);
+            TreeSnapshot.Node[] nodes = new TreeSnapshot.Node[count];
+            int[] parents = new int[count];
+            if (positions.length < layout.getCapacity()) {
+                positions = new int[layout.getCapacity()];
+            }
+            int[] order = layout.getOrder();
+            for (int k = 0; k < count; k++) {
+                int index = order[k];
+                // Parents are laid out before their children
+                positions[index] = k;
+                int parent = layout.getParent(index);
+                parents[k] = parent == FlatTree.NONE ? -1 : positions[parent];
+                TreeSnapshot.Node node = layout.getFrozenNode(index);
+                nodes[k] = node;
+                String label = labelMode == DrawableTreeNode.LABEL_NONE ? null : node.getLabel();
+                // Slices without weight are kept with no sweep, so that the slices of two versions line up
+                slices.add(layout.getStart(index), layout.getSweep(index), layout.getDepth(index),
+                        sliceCache.getPaint(node.getColorResId()).getColor(),
+                        sliceCache.getIcon(node.getIconResId(), colorIcons != -1),
+                        label, label == null ? 0f : labelCache.measure(label, labelPaint));
+            }
+            hits = new Hits(slices, nodes, parents);
+            return slices;
+        }
+
+        private void draw(SliceSnapshot snapshot) {
+            Canvas canvas;
+            try {
+                canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? surface.lockHardwareCanvas() : surface.lockCanvas(null);
+            } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+                Log.e(TAG, "Cannot draw on the surface", e);
+                return;
+            }
+            try {
+                canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                renderer.draw(canvas, snapshot);
+            } finally {
+                surface.unlockCanvasAndPost(canvas);
+            }
+        }
+    }
+}
@@ -18,44 +18,74 @@ import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.animation.PropertyValuesHolder;
 import android.animation.ValueAnimator;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Build;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.GestureDetector;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewParent;
+import android.view.animation.LinearInterpolator;
+import android.widget.OverScroller;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
 
 /**
  * Created by mineraud on 03/01/17.
  * The tree view widget intend to visually represent tree views
  */
-public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener, ValueAnimator.AnimatorUpdateListener {
+public class TreeView extends View implements TreeAdapter.TreeStructureListener, ValueAnimator.AnimatorUpdateListener {
 
     private static final String TAG = "TreeView";
+    private static final int PRESSED_OVERLAY_COLOR = 0x33000000;
+    private static final int MATCHED_OVERLAY_ALPHA = 0x55;
+    // What was released under memory pressure, in the order it is released
+    private static final int RELEASED_NONE = 0;
+    private static final int RELEASED_ICONS = 1;
+    private static final int RELEASED_GEOMETRY = 2;
     private final boolean radialView;
     private final float innerRadiusWeight;
     private final float layerHeight;
     private final float skipLength;
+    private final boolean adaptiveRings;
     private final boolean doAnimate;
     private final boolean addShadow;
     private final int colorIcons;
     private final GestureDetector gestureDetector;
     private float calculatedLayerHeight;
+    // Computed once per layout, the circles of a depth are shared by all of its slices
+    private final RingRadii rings;
+    private RectF[] innerCircles;
+    private RectF[] outerCircles;
     private TreeAdapter adapter;
-    private TreeMap<String, DrawableTreeNode> drawableTreeNodes;
+    // Shared with the other views of the adapter, see TreeAdapter#getLayout
+    private TreeLayout treeLayout;
+    private DrawableTreeNode[] drawableTreeNodes;
+    private int drawableCount;
     private int width;
     private int height;
     private AnimatorSet animatorSet;
@@ -64,6 +94,60 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
     private final Path shadowPath;
     private final Paint shadowPaint;
     private final float shadowOffset;
+    private ValueAnimator historyAnimator;
+    private final boolean selectable;
+    private final TreeAccessibilityHelper accessibilityHelper;
+    private final HitTestIndex hitTestIndex;
+    private boolean hitTestIndexDirty;
+    private final Paint pressedPaint;
+    private final Paint highlightPaint;
+    private final Paint selectedPaint;
+    // Set when a slice state changed since the view was last invalidated
+    private boolean sliceStatesChanged;
+    private TreeNode selectedNode;
+    private int selectedIndex;
+    private int pressedIndex;
+    private int highlightedIndex;
+    private final Paint matchedPaint;
+    private final HashSet<TreeNode> matchedNodes;
+    private int[] matchStates;
+    // Removals and moves of a frame are loaded once, on the next animation frame
+    private final Runnable structureUpdate;
+    private boolean structureUpdatePending;
+    // The slices of a cleared tree are not kept, the nodes of a compact store are numbered again
+    private boolean structureCleared;
+    private int matchedCount;
+    private final int labelMode;
+    // Inputs of the drawn slices, loading again with the same inputs does nothing
+    private TreeAdapter drawnAdapter;
+    private int drawnStructureVersion;
+    private int drawnWeightVersion;
+    private int drawnWidth;
+    private int drawnHeight;
+    private float drawnLayerHeight;
+    private TreeAdapter measuredAdapter;
+    private int measuredStructureVersion;
+    private int measuredDepth;
+    private final Paint labelPaint;
+    // Null unless the slices are drawn one path per color
+    private final ColorBatches colorBatches;
+    private final IconAtlas iconAtlas;
+    private final boolean rotatable;
+    // Applied when drawing and hit-testing, the slices themselves do not move
+    private float ringRotation;
+    private final Matrix rotationMatrix;
+    // The fling runs in pixels along the circle the finger was on, so that it slows down like a scroll
+    private final OverScroller flingScroller;
+    private int flingPosition;
+    private float flingRadius;
+    // Set once a drag turns the ring, the slices under the finger are no longer pressed then
+    private boolean rotating;
+    // Loaded again from the adapter on the next draw
+    private int releasedTier;
+    private final ComponentCallbacks2 memoryCallbacks;
+    private FrameTimingListener frameTimingListener;
+    // Spent laying the slices out since the last frame was drawn
+    private long layoutNanos;
 
     public TreeView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -72,17 +156,33 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
                 R.styleable.TreeView,
                 0, 0);
         int shadowColor;
+        int highlightColor;
+        float highlightWidth;
+        float labelTextSize;
+        int labelColor;
+        boolean batchColors;
+        boolean rotatable;
         try {
             // The default is to use radial view
             radialView = a.getBoolean(R.styleable.TreeView_radial_view, true);
             doAnimate = a.getBoolean(R.styleable.TreeView_animate, true);
             innerRadiusWeight = a.getFloat(R.styleable.TreeView_inner_radius_weight, 2f);
             skipLength = a.getFloat(R.styleable.TreeView_skip_length, 1f);
+            adaptiveRings = a.getBoolean(R.styleable.TreeView_adaptive_rings, false);
             layerHeight = a.getDimension(R.styleable.TreeView_layer_height, 50f);
             colorIcons = a.getResourceId(R.styleable.TreeView_color_icons, -1);
             addShadow = a.getBoolean(R.styleable.TreeView_shadow, true);
             shadowOffset = a.getFloat(R.styleable.TreeView_shadow_offset, 15f);
             shadowColor = a.getResourceId(R.styleable.TreeView_shadow_color, android.R.color.darker_gray);
+            selectable = a.getBoolean(R.styleable.TreeView_selectable, false);
+            highlightColor = a.getResourceId(R.styleable.TreeView_highlight_color, android.R.color.white);
+            highlightWidth = a.getDimension(R.styleable.TreeView_highlight_width, 4f);
+            labelMode = a.getInt(R.styleable.TreeView_label_mode, DrawableTreeNode.LABEL_NONE);
+            labelTextSize = a.getDimension(R.styleable.TreeView_label_text_size,
+                    12f * context.getResources().getDisplayMetrics().scaledDensity);
+            labelColor = a.getResourceId(R.styleable.TreeView_label_color, android.R.color.white);
+            batchColors = a.getBoolean(R.styleable.TreeView_batch_colors, false);
+            rotatable = a.getBoolean(R.styleable.TreeView_rotatable, false);
         } finally {
             a.recycle();
         }
@@ -91,7 +191,68 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         this.shadowPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         shadowPaint.setStyle(Paint.Style.STROKE);
         shadowPaint.setColor(ContextCompat.getColor(context, shadowColor));
-        this.drawableTreeNodes = new TreeMap<>();
+        this.treeLayout = new TreeLayout();
+        this.rings = new RingRadii();
+        this.innerCircles = new RectF[0];
+        this.outerCircles = new RectF[0];
+        this.drawableTreeNodes = new DrawableTreeNode[0];
+        this.drawableCount = 0;
+        this.hitTestIndex = new HitTestIndex();
+        this.hitTestIndexDirty = true;
+        this.pressedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        pressedPaint.setStyle(Paint.Style.FILL);
+        pressedPaint.setColor(PRESSED_OVERLAY_COLOR);
+        this.highlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        highlightPaint.setStyle(Paint.Style.STROKE);
+        highlightPaint.setStrokeWidth(highlightWidth / 2);
+        highlightPaint.setColor(ContextCompat.getColor(context, highlightColor));
+        this.selectedPaint = new Paint(highlightPaint);
+        selectedPaint.setStrokeWidth(highlightWidth);
+        this.matchedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        matchedPaint.setStyle(Paint.Style.FILL);
+        matchedPaint.setColor(highlightPaint.getColor());
+        matchedPaint.setAlpha(MATCHED_OVERLAY_ALPHA);
+        this.matchedNodes = new HashSet<>();
+        this.structureUpdate = new Runnable() {
+            @Override
+            public void run() {
+                structureUpdatePending = false;
+                loadStructureFromAdapter();
+            }
+        };
+        this.matchStates = new int[0];
+        this.matchedCount = 0;
+        this.sliceStatesChanged = false;
+        this.selectedNode = null;
+        this.selectedIndex = FlatTree.NONE;
+        this.pressedIndex = FlatTree.NONE;
+        this.highlightedIndex = FlatTree.NONE;
+        this.labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        labelPaint.setTextSize(labelTextSize);
+        labelPaint.setColor(ContextCompat.getColor(context, labelColor));
+        this.colorBatches = batchColors ? new ColorBatches() : null;
+        this.iconAtlas = new IconAtlas();
+        this.rotatable = rotatable;
+        this.ringRotation = 0f;
+        this.rotationMatrix = new Matrix();
+        this.flingScroller = new OverScroller(context);
+        this.releasedTier = RELEASED_NONE;
+        this.memoryCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration configuration) {
+
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+        };
         this.animatorSet = new AnimatorSet();
         this.animators = new ArrayList<>();
         this.listeners = new ArrayList<>();
@@ -99,6 +260,9 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
             @Override
             public boolean onDown(MotionEvent motionEvent) {
                 Log.d(TAG, "onDown");
+                // Touching the ring stops it
+                flingScroller.forceFinished(true);
+                rotating = false;
                 return true;
             }
 
@@ -111,27 +275,38 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
             public boolean onSingleTapUp(MotionEvent motionEvent) {
                 Log.d(TAG, "onSingleTapUp");
                 //fires on drag and click
-                boolean clickedSomething = false;
-                for (DrawableTreeNode drawableTreeNode : drawableTreeNodes.values()) {
-                    if (clicked(drawableTreeNode.backgroundPath, motionEvent)) {
-                        for (OnClickListener listener : listeners) {
-                            listener.onNodeClicked(drawableTreeNode.getNode());
-                        }
-                        clickedSomething = true;
-                        break;
-                    }
-                }
-                if (!clickedSomething) {
-                    for (OnClickListener listener : listeners) {
-                        listener.onNodeClicked(null);
-                    }
-                }
+                performSliceClick(findSliceAt(motionEvent.getX(), motionEvent.getY()));
                 return true;
             }
 
             @Override
             public boolean onScroll(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1) {
-                return false;
+                if (!TreeView.this.rotatable) {
+                    return false;
+                }
+                ViewParent parent = getParent();
+                if (parent != null) {
+                    parent.requestDisallowInterceptTouchEvent(true);
+                }
+                // The distances go from the current point back to the previous one
+                float x = motionEvent1.getX() - width / 2f;
+                float y = motionEvent1.getY() - height / 2f;
+                float degrees = (float) Math.toDegrees(Math.atan2(y, x) - Math.atan2(y + v1, x + v));
+                if (degrees > 180) {
+                    degrees -= 360;
+                } else if (degrees < -180) {
+                    degrees += 360;
+                }
+                if (!rotating) {
+                    rotating = true;
+                    if (selectable) {
+                        setPressedIndex(FlatTree.NONE);
+                        highlightPath(selectedIndex);
+                        invalidateSliceStates();
+                    }
+                }
+                setRingRotation(ringRotation + degrees);
+                return true;
             }
 
             @Override
@@ -141,23 +316,137 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
 
             @Override
             public boolean onFling(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1) {
-                return false;
+                if (!TreeView.this.rotatable) {
+                    return false;
+                }
+                float x = motionEvent1.getX() - width / 2f;
+                float y = motionEvent1.getY() - height / 2f;
+                float radiusSquared = x * x + y * y;
+                if (radiusSquared < 1f) {
+                    return false;
+                }
+                // Speed of the finger along the circle around the center, the angular velocity times the radius
+                flingRadius = (float) Math.sqrt(radiusSquared);
+                float pixelsPerSecond = (x * v1 - y * v) / flingRadius;
+                flingPosition = 0;
+                flingScroller.fling(0, 0, Math.round(pixelsPerSecond), 0,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 0);
+                ViewCompat.postInvalidateOnAnimation(TreeView.this);
+                return true;
             }
         });
         this.gestureDetector.setIsLongpressEnabled(true);
+        this.accessibilityHelper = new TreeAccessibilityHelper(this);
+        ViewCompat.setAccessibilityDelegate(this, accessibilityHelper);
     }
 
     public void addOnClickListener(OnClickListener listener) {
         listeners.add(listener);
     }
 
+    /**
+     * Told after every frame how long the view took to lay the slices out and to draw them, null stops it
+     */
+    public void setFrameTimingListener(FrameTimingListener listener) {
+        this.frameTimingListener = listener;
+    }
+
     public void setTreeMapAdapter(TreeAdapter adapter) {
         if (this.adapter != null) {
             this.adapter.removeTreeNodeChangeListener(this);
         }
         this.adapter = adapter;
         this.adapter.addTreeNodeChangeListener(this);
-        this.adapter.notifyDataSetChanged();
+        // The other views of the adapter are already up to date
+        onDataSetChanged();
+    }
+
+    /**
+     * Plays the weight history of the adapter back, scrubbing it once per frame from one time to the other.
+     * The adapter is left scrubbed at the end time, see {@link TreeAdapter#resumeLive()}.
+     * The playback stops when the view is detached.
+     *
+     * @param windowMillis when positive, every frame shows the weight gained over that window
+     *                     rather than the weight at a single time
+     */
+    public void playHistory(final long from, final long to, final long windowMillis, long durationMillis) {
+        stopHistoryPlayback();
+        historyAnimator = ValueAnimator.ofFloat(0f, 1f);
+        historyAnimator.setDuration(durationMillis);
+        historyAnimator.setInterpolator(new LinearInterpolator());
+        historyAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                long time = from + (long) ((to - from) * (double) valueAnimator.getAnimatedFraction());
+                if (windowMillis > 0) {
+                    adapter.scrubToWindow(time - windowMillis, time);
+                } else {
+                    adapter.scrubTo(time);
+                }
+                adapter.notifyWeightsChanged();
+            }
+        });
+        historyAnimator.start();
+    }
+
+    public void stopHistoryPlayback() {
+        if (historyAnimator != null) {
+            historyAnimator.cancel();
+            historyAnimator = null;
+        }
+    }
+
+    public boolean isPlayingHistory() {
+        return historyAnimator != null && historyAnimator.isRunning();
+    }
+
+    /**
+     * Renders the slices as they are now into tiles on a background thread, for outputs too large for one bitmap.
+     * Only one tile bitmap is allocated whatever the output size, the sink is called on the background thread.
+     * The slices are first copied on the calling thread, see {@link #exportSvg(Writer, boolean, ExportCallback)}.
+     *
+     * @param scale    the output size relative to the size of the view
+     * @param tileSize the width and height of the tiles in pixels
+     */
+    public void exportTiles(float scale, int tileSize, TileSink sink) {
+        new Thread(new TileExporter(takeSnapshot(), scale, tileSize, sink), "TreeViewTileExport").start();
+    }
+
+    /**
+     * Writes the slices as they are now as SVG on a background thread, one element at a time.
+     * Wedges have the same geometry as on screen, icons are not part of the output.
+     * The writer is flushed but not closed.
+     * <p>
+     * The layout is changed on the UI thread while the export runs, so the angle, depth, color and label of
+     * every visible slice are first copied on the calling thread: this takes time and memory linear in the
+     * number of slices, a few dozen bytes each, before the export thread starts.
+     *
+     * @param labels whether to write the labels that are drawn on screen
+     */
+    public void exportSvg(Writer writer, boolean labels, ExportCallback callback) {
+        new Thread(new SvgExporter(takeSnapshot(), writer, labels, callback), "TreeViewSvgExport").start();
+    }
+
+    /**
+     * Copies the slices as they are drawn now, for rendering outside of the UI thread.
+     * Linear in the number of slices, the labels and icons are shared rather than copied.
+     */
+    SliceSnapshot takeSnapshot() {
+        restoreReleased();
+        SliceSnapshot snapshot = new SliceSnapshot(width, height, rings.copy(), 0.75f * calculatedLayerHeight, labelMode, labelPaint,
+                addShadow && drawableCount > 0, shadowOffset, shadowPaint.getColor(), drawableCount);
+        int[] order = treeLayout.getOrder();
+        for (int k = 0; k < drawableCount; k++) {
+            DrawableTreeNode drawableTreeNode = drawableTreeNodes[order[k]];
+            if (drawableTreeNode.getNode().getWeight() <= 0.00001) {
+                continue;
+            }
+            snapshot.add(drawableTreeNode.getStart(), drawableTreeNode.getSweep(), treeLayout.getDepth(order[k]),
+                    drawableTreeNode.getColor(), drawableTreeNode.getIconBitmap(),
+                    drawableTreeNode.labelMode == DrawableTreeNode.LABEL_NONE ? null : drawableTreeNode.label,
+                    drawableTreeNode.labelWidth);
+        }
+        return snapshot;
     }
 
     public TreeAdapter getTreeAdapter() {
@@ -168,32 +457,323 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         return radialView;
     }
 
+    /**
+     * Turns the ring clockwise around its center, without laying the slices out again
+     */
+    public void setRingRotation(float degrees) {
+        degrees %= 360;
+        if (degrees < 0) {
+            degrees += 360;
+        }
+        if (degrees != ringRotation) {
+            ringRotation = degrees;
+            invalidate();
+        }
+    }
+
+    public float getRingRotation() {
+        return ringRotation;
+    }
+
+    @Override
+    public void computeScroll() {
+        if (flingScroller.computeScrollOffset()) {
+            int position = flingScroller.getCurrX();
+            setRingRotation(ringRotation + (float) Math.toDegrees((position - flingPosition) / flingRadius));
+            flingPosition = position;
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /**
+     * Maps bounds from the slices to the view, the ring may be rotated
+     */
+    void mapToView(RectF bounds) {
+        if (ringRotation != 0) {
+            rotationMatrix.setRotate(ringRotation, width / 2f, height / 2f);
+            rotationMatrix.mapRect(bounds);
+        }
+    }
+
     private void loadDrawablesFromAdapter() {
-        drawableTreeNodes.clear();
+        if (isDrawnUpToDate()) {
+            return;
+        }
+        if (releasedTier != RELEASED_GEOMETRY) {
+            long start = System.nanoTime();
+            makeDrawables(null);
+            layoutNanos += System.nanoTime() - start;
+        }
+        // then invalidate and finally request layout
+        invalidate();
+        requestLayout();
+    }
+
+    /**
+     * Lays the tree out again after removals and moves. The slices of the nodes still in the same ring
+     * are kept along with their labels and icons, only the ones whose angles changed rebuild their path.
+     */
+    private void loadStructureFromAdapter() {
+        boolean cleared = structureCleared;
+        structureCleared = false;
+        if (cleared || drawableCount == 0 || !isRadialView() || drawnAdapter != adapter || !isDrawnGeometry()
+                || releasedTier != RELEASED_NONE) {
+            loadDrawablesFromAdapter();
+            return;
+        }
+        long start = System.nanoTime();
+        HashMap<TreeNode, DrawableTreeNode> previous = new HashMap<>(drawableCount * 2);
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (drawableTreeNode != null) {
+                previous.put(drawableTreeNode.getNode(), drawableTreeNode);
+            }
+        }
+        makeDrawables(previous);
+        layoutNanos += System.nanoTime() - start;
+        invalidate();
+        requestLayout();
+    }
+
+    /**
+     * @param previous the slices that can be kept, by node, or null to make them all again
+     */
+    private void makeDrawables(Map<TreeNode, DrawableTreeNode> previous) {
+        drawnAdapter = null;
+        releasedTier = RELEASED_NONE;
+        Arrays.fill(drawableTreeNodes, null);
+        drawableCount = 0;
+        hitTestIndexDirty = true;
+        pressedIndex = FlatTree.NONE;
+        highlightedIndex = FlatTree.NONE;
+        selectedIndex = FlatTree.NONE;
+        if (adapter == null) {
+            return;
+        }
         // Log.d(TAG, "loadDrawablesFromAdapter");
         if (isRadialView()) {
             // The radial view is over 360 degrees
+            makeDrawableTreeNodes(previous);
             if (addShadow) {
                 setRadialShadow(shadowOffset);
             }
-            makeDrawableTreeNodes(adapter.getRootNodes(), 0, 360, -1);
+            if (selectedNode != null) {
+                // The indexes changed, find the selected node again
+                selectIndex(indexOfNode(selectedNode));
+            }
+            if (!matchedNodes.isEmpty()) {
+                markMatches();
+            }
+            // Everything is drawn again anyway
+            sliceStatesChanged = false;
+            setDrawn();
+            accessibilityHelper.invalidateRoot();
         } else {
-            // While the rectangular view uses percentages
-            makeDrawableTreeNodes(adapter.getRootNodes(), 0, 100, -1);
+            Log.e(TAG, "Not yet implemented");
         }
-        // then invalidate and finally request layout
+    }
+
+    /**
+     * Releases the icons, then the slices and their buffers, as the memory pressure goes up.
+     * What was released is loaded again from the adapter the next time the view is drawn.
+     * Attached views are called back by the application, detached views release everything.
+     *
+     * @param level a level of {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        if (adapter != null) {
+            adapter.trimMemory(level);
+        }
+        if (TreeAdapter.releasesGeometry(level)) {
+            releaseGeometry();
+        } else if (TreeAdapter.releasesIcons(level) && !isShown()) {
+            // A view on screen would decode its icons again right away
+            releaseIcons();
+        }
+    }
+
+    private void releaseIcons() {
+        if (releasedTier != RELEASED_NONE) {
+            return;
+        }
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (drawableTreeNode != null) {
+                drawableTreeNode.setIconBitmap(null);
+            }
+        }
+        iconAtlas.release();
+        releasedTier = RELEASED_ICONS;
         invalidate();
-        requestLayout();
+    }
+
+    private void releaseGeometry() {
+        if (releasedTier == RELEASED_GEOMETRY) {
+            return;
+        }
+        animatorSet.cancel();
+        animators.clear();
+        drawableTreeNodes = new DrawableTreeNode[0];
+        drawableCount = 0;
+        // The layouts of the adapter are dropped as well
+        treeLayout = new TreeLayout();
+        hitTestIndex.release();
+        hitTestIndexDirty = true;
+        if (colorBatches != null) {
+            colorBatches.release();
+        }
+        iconAtlas.release();
+        matchStates = new int[0];
+        pressedIndex = FlatTree.NONE;
+        highlightedIndex = FlatTree.NONE;
+        selectedIndex = FlatTree.NONE;
+        drawnAdapter = null;
+        releasedTier = RELEASED_GEOMETRY;
+        invalidate();
+    }
+
+    /**
+     * Loads what was released again, the slices keep their place
+     */
+    private void restoreReleased() {
+        if (releasedTier == RELEASED_NONE || adapter == null) {
+            return;
+        }
+        if (releasedTier == RELEASED_GEOMETRY) {
+            makeDrawables(null);
+            return;
+        }
+        SliceCache sliceCache = adapter.getSliceCache(getContext());
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (drawableTreeNode != null) {
+                drawableTreeNode.setIconBitmap(sliceCache.getIcon(drawableTreeNode.getNode().getIconResId(),
+                        this.colorIcons != -1));
+            }
+        }
+        iconAtlas.update(drawableTreeNodes, Math.round(0.75f * this.calculatedLayerHeight));
+        releasedTier = RELEASED_NONE;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getContext().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        getContext().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+        removeCallbacks(structureUpdate);
+        structureUpdatePending = false;
+        flingScroller.forceFinished(true);
+        // The adapter is left scrubbed where the playback stopped
+        stopHistoryPlayback();
+        // Nothing is drawn until attached again, the adapter is left alone for its other views
+        releaseGeometry();
+    }
+
+    private boolean isDrawnUpToDate() {
+        return adapter != null && drawnAdapter == adapter
+                && drawnStructureVersion == adapter.getStructureVersion()
+                && drawnWeightVersion == adapter.getWeightVersion()
+                && isDrawnGeometry();
+    }
+
+    private boolean isDrawnGeometry() {
+        return drawnWidth == width && drawnHeight == height && drawnLayerHeight == calculatedLayerHeight;
+    }
+
+    private void setDrawn() {
+        drawnAdapter = adapter;
+        drawnStructureVersion = adapter.getStructureVersion();
+        drawnWeightVersion = adapter.getWeightVersion();
+        drawnWidth = width;
+        drawnHeight = height;
+        drawnLayerHeight = calculatedLayerHeight;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        long start = System.nanoTime();
+        restoreReleased();
+        long drawStart = System.nanoTime();
+        layoutNanos += drawStart - start;
         if (addShadow) {
             canvas.drawPath(shadowPath, shadowPaint);
         }
-        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes.values()) {
-            drawableTreeNode.draw(canvas);
+        boolean rotated = ringRotation != 0;
+        if (rotated) {
+            canvas.save();
+            canvas.rotate(ringRotation, width / 2f, height / 2f);
+        }
+        if (colorBatches != null) {
+            colorBatches.draw(canvas, drawableTreeNodes, treeLayout.getOrder(), drawableCount);
+        }
+        boolean atlasReady = iconAtlas.isReady();
+        for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+            if (isDrawn(drawableTreeNode)) {
+                if (colorBatches == null) {
+                    drawableTreeNode.drawWedge(canvas);
+                }
+                // A label that fits is drawn instead of the icon
+                if (!drawableTreeNode.drawLabelIfFits(canvas) && !atlasReady && drawableTreeNode.showsIcon()) {
+                    drawableTreeNode.drawIcon(canvas);
+                }
+            }
+        }
+        // The icons go last, one after the other from the same bitmap
+        if (atlasReady) {
+            for (DrawableTreeNode drawableTreeNode : drawableTreeNodes) {
+                if (isDrawn(drawableTreeNode) && drawableTreeNode.showsIcon()) {
+                    iconAtlas.draw(canvas, drawableTreeNode);
+                }
+            }
+        }
+        // The states are drawn on top, so that outlines are not covered by the neighbouring slices
+        if (pressedIndex != FlatTree.NONE) {
+            drawSliceState(canvas, pressedIndex, pressedPaint);
+        }
+        if (matchedCount > 0) {
+            for (int index = 0; index < drawableTreeNodes.length; index++) {
+                DrawableTreeNode drawableTreeNode = drawableTreeNodes[index];
+                if (drawableTreeNode == null) {
+                    continue;
+                }
+                int state = drawableTreeNode.getSliceState();
+                if ((state & DrawableTreeNode.STATE_MATCHED) != 0) {
+                    drawSliceState(canvas, index, matchedPaint);
+                }
+                if ((state & (DrawableTreeNode.STATE_MATCHED | DrawableTreeNode.STATE_MATCH_PATH)) != 0
+                        && index != selectedIndex) {
+                    drawSliceState(canvas, index, highlightPaint);
+                }
+            }
+        }
+        for (int index = highlightedIndex; index >= 0; index = getDrawnParent(index)) {
+            if (index != selectedIndex) {
+                drawSliceState(canvas, index, highlightPaint);
+            }
+        }
+        if (selectedIndex != FlatTree.NONE) {
+            drawSliceState(canvas, selectedIndex, selectedPaint);
+        }
+        if (rotated) {
+            canvas.restore();
+        }
+        if (frameTimingListener != null) {
+            frameTimingListener.onFrameTiming(layoutNanos, System.nanoTime() - drawStart, drawableCount);
+        }
+        layoutNanos = 0;
+    }
+
+    private static boolean isDrawn(DrawableTreeNode drawableTreeNode) {
+        return drawableTreeNode != null && drawableTreeNode.hasWeight();
+    }
+
+    private void drawSliceState(Canvas canvas, int index, Paint paint) {
+        DrawableTreeNode drawableTreeNode = getDrawableTreeNode(index);
+        if (drawableTreeNode != null && drawableTreeNode.getSweep() > 0) {
+            canvas.drawPath(drawableTreeNode.backgroundPath, paint);
         }
     }
 
@@ -236,29 +816,312 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (selectable) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    rotating = false;
+                    // Fall through
+                case MotionEvent.ACTION_MOVE:
+                    if (rotating) {
+                        // The ring turns under the finger, nothing is pressed
+                        break;
+                    }
+                    // Follow the finger
+                    int index = findSliceAt(event.getX(), event.getY());
+                    setPressedIndex(index);
+                    highlightPath(index == FlatTree.NONE ? selectedIndex : index);
+                    invalidateSliceStates();
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    setPressedIndex(FlatTree.NONE);
+                    highlightPath(selectedIndex);
+                    invalidateSliceStates();
+                    break;
+                default:
+                    break;
+            }
+        }
         return gestureDetector.onTouchEvent(event);
     }
 
-    private RectF getInnerCircleForDepth(int depth) {
-        float centerX = this.width / 2;
-        float centerY = this.height / 2;
-        float offset = depth == 1 ? 0 : (depth - 1) * calculatedLayerHeight + calculatedLayerHeight * 0.05f;
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        return accessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
 
-        float innerRadius = innerRadiusWeight * calculatedLayerHeight;
-        return new RectF(
-                centerX - innerRadius - offset, centerY - innerRadius - offset,
-                centerX + innerRadius + offset, centerY + innerRadius + offset);
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        return accessibilityHelper.dispatchKeyEvent(event) || super.dispatchKeyEvent(event);
+    }
+
+    @Override
+    protected void onFocusChanged(boolean gainFocus, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+        accessibilityHelper.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+    }
+
+    /**
+     * Selects the slice when selectable and tells the listeners, {@link FlatTree#NONE} is a click outside of the slices
+     */
+    void performSliceClick(int index) {
+        TreeNode node = index == FlatTree.NONE ? null : drawableTreeNodes[index].getNode();
+        if (selectable) {
+            selectedNode = node;
+            selectIndex(index);
+        }
+        for (OnClickListener listener : listeners) {
+            listener.onNodeClicked(node);
+        }
+    }
+
+    DrawableTreeNode getDrawableTreeNode(int index) {
+        return index >= 0 && index < drawableTreeNodes.length ? drawableTreeNodes[index] : null;
+    }
+
+    /**
+     * @return true if the slice is at least minSize long along its middle arc and across its ring
+     */
+    boolean isTouchTarget(int index, float minSize) {
+        DrawableTreeNode drawableTreeNode = getDrawableTreeNode(index);
+        if (drawableTreeNode == null || index >= treeLayout.getCapacity()) {
+            return false;
+        }
+        int depth = treeLayout.getDepth(index);
+        float thickness = rings.getThickness(depth);
+        float middleRadius = (rings.getInner(depth) + rings.getOuter(depth)) / 2;
+        float arcLength = (float) Math.toRadians(drawableTreeNode.getSweep()) * middleRadius;
+        return thickness >= minSize && arcLength >= minSize;
+    }
+
+    /**
+     * @return the share of its parent slice, or of the whole ring for a root, that the slice covers
+     */
+    float getSweepShare(int index) {
+        DrawableTreeNode drawableTreeNode = getDrawableTreeNode(index);
+        if (drawableTreeNode == null || index >= treeLayout.getCapacity()) {
+            return 0;
+        }
+        DrawableTreeNode parent = getDrawableTreeNode(treeLayout.getParent(index));
+        float parentSweep = parent == null ? 360f : parent.getSweep();
+        return parentSweep > 0 ? drawableTreeNode.getSweep() / parentSweep : 0;
+    }
+
+    HitTestIndex getHitTestIndex() {
+        if (hitTestIndexDirty) {
+            hitTestIndex.build(drawableTreeNodes);
+            hitTestIndexDirty = false;
+        }
+        return hitTestIndex;
+    }
+
+    /**
+     * @return the layout index of the slice under the point, or {@link FlatTree#NONE}
+     */
+    int findSliceAt(float x, float y) {
+        if (drawableCount == 0 || calculatedLayerHeight <= 0) {
+            return FlatTree.NONE;
+        }
+        float dx = x - this.width / 2;
+        float dy = y - this.height / 2;
+        float radius = (float) Math.sqrt(dx * dx + dy * dy);
+        int depth = getDepthAtRadius(radius);
+        if (depth < 1) {
+            return FlatTree.NONE;
+        }
+        // Same orientation as the arcs: clockwise from 3 o'clock, in the frame of the slices
+        float angle = (float) Math.toDegrees(Math.atan2(dy, dx)) - ringRotation;
+        while (angle < 0) {
+            angle += 360;
+        }
+        return getHitTestIndex().find(depth, angle);
+    }
+
+    private int getDepthAtRadius(float radius) {
+        return rings.findDepth(radius);
+    }
+
+    /**
+     * Selects a node and highlights its path from the root, null clears the selection.
+     */
+    public void setSelectedNode(TreeNode node) {
+        selectedNode = node;
+        selectIndex(indexOfNode(node));
+    }
+
+    public TreeNode getSelectedNode() {
+        return selectedNode;
+    }
+
+    /**
+     * Highlights a node and its ancestors without selecting it, null goes back to the selected node path.
+     */
+    public void setHighlightedNode(TreeNode node) {
+        int index = indexOfNode(node);
+        highlightPath(index == FlatTree.NONE ? selectedIndex : index);
+        invalidateSliceStates();
     }
 
-    private RectF getOuterCircleForDepth(int depth) {
+    /**
+     * Highlights the given nodes, typically search results from {@link TreeAdapter#search(String, int)},
+     * along with the path from the root to each of them. The view is drawn again only if a slice state changed.
+     *
+     * @param nodes the nodes to highlight, null or empty clears them
+     */
+    public void setMatchedNodes(Collection<TreeNode> nodes) {
+        matchedNodes.clear();
+        if (nodes != null) {
+            matchedNodes.addAll(nodes);
+        }
+        markMatches();
+        invalidateSliceStates();
+    }
+
+    private void markMatches() {
+        if (matchStates.length < drawableTreeNodes.length) {
+            matchStates = new int[drawableTreeNodes.length];
+        } else {
+            Arrays.fill(matchStates, 0);
+        }
+        matchedCount = 0;
+        if (!matchedNodes.isEmpty()) {
+            for (int index = 0; index < drawableTreeNodes.length; index++) {
+                if (drawableTreeNodes[index] != null && matchedNodes.contains(drawableTreeNodes[index].getNode())) {
+                    matchStates[index] |= DrawableTreeNode.STATE_MATCHED;
+                    matchedCount++;
+                    // Stop at the first ancestor already on the path of another match
+                    for (int parent = getDrawnParent(index);
+                         parent >= 0 && (matchStates[parent] & DrawableTreeNode.STATE_MATCH_PATH) == 0;
+                         parent = getDrawnParent(parent)) {
+                        matchStates[parent] |= DrawableTreeNode.STATE_MATCH_PATH;
+                    }
+                }
+            }
+        }
+        // Only a slice whose state changes draws the view again
+        for (int index = 0; index < drawableTreeNodes.length; index++) {
+            if (drawableTreeNodes[index] != null) {
+                setSliceState(index, DrawableTreeNode.STATE_MATCHED,
+                        (matchStates[index] & DrawableTreeNode.STATE_MATCHED) != 0);
+                setSliceState(index, DrawableTreeNode.STATE_MATCH_PATH,
+                        (matchStates[index] & DrawableTreeNode.STATE_MATCH_PATH) != 0);
+            }
+        }
+    }
+
+    private void selectIndex(int index) {
+        if (selectedIndex != FlatTree.NONE) {
+            setSliceState(selectedIndex, DrawableTreeNode.STATE_SELECTED, false);
+        }
+        selectedIndex = index;
+        if (index != FlatTree.NONE) {
+            setSliceState(index, DrawableTreeNode.STATE_SELECTED, true);
+        }
+        highlightPath(index);
+        invalidateSliceStates();
+    }
+
+    private void setPressedIndex(int index) {
+        if (index == pressedIndex) {
+            return;
+        }
+        if (pressedIndex != FlatTree.NONE) {
+            setSliceState(pressedIndex, DrawableTreeNode.STATE_PRESSED, false);
+        }
+        pressedIndex = index;
+        if (index != FlatTree.NONE) {
+            setSliceState(index, DrawableTreeNode.STATE_PRESSED, true);
+        }
+    }
+
+    private void highlightPath(int index) {
+        if (index == highlightedIndex) {
+            return;
+        }
+        for (int i = highlightedIndex; i >= 0; i = getDrawnParent(i)) {
+            setSliceState(i, DrawableTreeNode.STATE_HIGHLIGHTED, false);
+        }
+        highlightedIndex = index;
+        for (int i = index; i >= 0; i = getDrawnParent(i)) {
+            setSliceState(i, DrawableTreeNode.STATE_HIGHLIGHTED, true);
+        }
+    }
+
+    /**
+     * The layout of a compact adapter reads the parents from the store, which changes as soon as a node is
+     * removed or moved, before the slices are made again on the next frame.
+     *
+     * @return the parent of the slice, or {@link FlatTree#NONE} for a root, a removed node or a parent without a slice yet
+     */
+    private int getDrawnParent(int index) {
+        int parent = treeLayout.getParent(index);
+        return parent >= 0 && parent < drawableTreeNodes.length ? parent : FlatTree.NONE;
+    }
+
+    private void setSliceState(int index, int flag, boolean enabled) {
+        DrawableTreeNode drawableTreeNode = getDrawableTreeNode(index);
+        if (drawableTreeNode != null && drawableTreeNode.setSliceState(flag, enabled)) {
+            sliceStatesChanged = true;
+        }
+    }
+
+    /**
+     * Draws the view again if a slice state changed, a state change alone does not lay anything out again
+     */
+    private void invalidateSliceStates() {
+        if (sliceStatesChanged) {
+            sliceStatesChanged = false;
+            invalidate();
+        }
+    }
+
+    private int indexOfNode(TreeNode node) {
+        if (node == null) {
+            return FlatTree.NONE;
+        }
+        if (node.store != null) {
+            int index = node.index;
+            return index < drawableTreeNodes.length && drawableTreeNodes[index] != null
+                    && treeLayout.isSameNode(index, node) ? index : FlatTree.NONE;
+        }
+        for (int index = 0; index < drawableTreeNodes.length; index++) {
+            if (drawableTreeNodes[index] != null && treeLayout.isSameNode(index, node)) {
+                return index;
+            }
+        }
+        return FlatTree.NONE;
+    }
+
+    /**
+     * Computes the radii of the rings for the current layout and moves their circles in place
+     *
+     * @return true if any ring moved, the slices of the adaptive rings then have to rebuild their paths
+     */
+    private boolean layOutRings() {
+        float innerRadius = innerRadiusWeight * calculatedLayerHeight;
+        boolean changed;
+        if (adaptiveRings) {
+            changed = rings.setAdaptive(treeLayout, getAdapterDepth(), innerRadius, calculatedLayerHeight);
+        } else {
+            changed = rings.setUniform(getAdapterDepth(), innerRadius, calculatedLayerHeight);
+        }
+        int depth = rings.getDepth();
+        if (innerCircles.length < depth + 1) {
+            int length = innerCircles.length;
+            innerCircles = Arrays.copyOf(innerCircles, depth + 1);
+            outerCircles = Arrays.copyOf(outerCircles, depth + 1);
+            for (int ringDepth = length; ringDepth <= depth; ringDepth++) {
+                innerCircles[ringDepth] = new RectF();
+                outerCircles[ringDepth] = new RectF();
+            }
+        }
         float centerX = this.width / 2;
         float centerY = this.height / 2;
-        float offset = depth * calculatedLayerHeight;
-        float innerRadius = innerRadiusWeight * calculatedLayerHeight;
-        return new RectF(centerX - innerRadius - offset,
-                centerY - innerRadius - offset,
-                centerX + innerRadius + offset,
-                centerY + innerRadius + offset);
+        for (int ringDepth = 1; ringDepth <= depth; ringDepth++) {
+            SliceRenderer.setCircle(innerCircles[ringDepth], centerX, centerY, rings.getInner(ringDepth));
+            SliceRenderer.setCircle(outerCircles[ringDepth], centerX, centerY, rings.getOuter(ringDepth));
+        }
+        return changed;
     }
 
     @Override
@@ -318,8 +1181,9 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         int desiredHeight = getPaddingTop() + getPaddingBottom();
         int desiredWidth = getPaddingLeft() + getPaddingRight();
 
-        float layers = adapter.getDepth() + innerRadiusWeight;
-        int depth = adapter == null || adapter.getDepth() < 1 ? 0 : adapter.getDepth();
+        int adapterDepth = getAdapterDepth();
+        float layers = adapterDepth + innerRadiusWeight;
+        int depth = adapterDepth < 1 ? 0 : adapterDepth;
 
         desiredHeight += Math.round(layerHeight * layers + depth * skipLength);
         desiredWidth += Math.round(layerHeight * layers + depth * skipLength);
@@ -375,9 +1239,28 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         setMeasuredDimension(width, height);
     }
 
+    /**
+     * The depth only changes with the structure of the tree, not on every measure pass
+     */
+    private int getAdapterDepth() {
+        if (adapter == null) {
+            return 0;
+        }
+        if (measuredAdapter != adapter || measuredStructureVersion != adapter.getStructureVersion()) {
+            measuredAdapter = adapter;
+            measuredDepth = adapter.getDepth();
+            measuredStructureVersion = adapter.getStructureVersion();
+        }
+        return measuredDepth;
+    }
+
     private void setRadialShadow(float offset) {
-        RectF innerCircle = getInnerCircleForDepth(1);
-        RectF outerCircle = getOuterCircleForDepth(1);
+        if (rings.getDepth() < 1) {
+            shadowPath.reset();
+            return;
+        }
+        RectF innerCircle = innerCircles[1];
+        RectF outerCircle = outerCircles[1];
 
         shadowPath.reset();
 
@@ -391,101 +1274,138 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         }
 
         //noinspection SuspiciousNameCombination
-        shadowPaint.setStrokeWidth(calculatedLayerHeight + offset);
+        shadowPaint.setStrokeWidth(rings.getThickness(1) + offset);
     }
 
-    private void makeDrawableTreeNodes(List<TreeNode> nodes, float parentStart, float parentSweep, double parentWeight) {
-        float totalWeight = 0;
-        int depth = -1;
-        int nonZeroNodeCounter = 0;
-        for (TreeNode node : nodes) {
-            totalWeight += node.getWeight();
-            if (node.getWeight() > 0) {
-                nonZeroNodeCounter++;
-            }
-            if (depth == -1) {
-                depth = node.getDepth();
-            } else if (depth != node.getDepth()) {
-                Log.e(TAG, "The depth of the nodes are not all equal");
-            }
+    private void makeDrawableTreeNodes(Map<TreeNode, DrawableTreeNode> previous) {
+        treeLayout = adapter.getLayout(skipLength);
+        SliceCache sliceCache = adapter.getSliceCache(getContext());
+        if (drawableTreeNodes.length < treeLayout.getCapacity()) {
+            drawableTreeNodes = new DrawableTreeNode[treeLayout.getCapacity()];
         }
-        if (parentWeight > 0) {
-            if (parentWeight < totalWeight) {
-                Log.w(TAG, "Given weight is smaller than total weight, dismissed");
-            } else {
-                totalWeight = (float) parentWeight;
+        boolean ringsMoved = layOutRings();
+        int[] order = treeLayout.getOrder();
+        for (int k = 0; k < treeLayout.getCount(); k++) {
+            int index = order[k];
+            int depth = treeLayout.getDepth(index);
+            RectF innerCircle = innerCircles[depth];
+            RectF outerCircle = outerCircles[depth];
+            TreeNode node = treeLayout.getNode(index);
+            DrawableTreeNode kept = previous == null ? null : previous.get(node);
+            if (kept instanceof RadialDrawableTreeNode
+                    && ((RadialDrawableTreeNode) kept).isInRing(innerCircle, outerCircle)) {
+                // The path is only rebuilt if the angles or the rings changed
+                kept.setStart(treeLayout.getStart(index));
+                kept.setSweep(treeLayout.getSweep(index));
+                kept.clearSliceState();
+                if (ringsMoved) {
+                    kept.invalidateGeometry();
+                }
+                this.drawableTreeNodes[index] = kept;
+                continue;
+            }
+            this.drawableTreeNodes[index] = RadialDrawableTreeNode.getInstance(getContext(), node,
+                    innerCircle, outerCircle, treeLayout.getStart(index), treeLayout.getSweep(index),
+                    sliceCache.getPaint(node.getColorResId()), sliceCache.getIcon(node.getIconResId(), this.colorIcons != -1),
+                    0.75f * this.calculatedLayerHeight);
+            if (labelMode != DrawableTreeNode.LABEL_NONE && node.getLabel() != null) {
+                // Measured once per label, weight updates only move the slices
+                this.drawableTreeNodes[index].setLabel(node.getLabel(),
+                        sliceCache.getLabelCache().measure(node.getLabel(), labelPaint), labelPaint, labelMode);
             }
         }
-        float realParentSweep = parentSweep;
-        float nodeStart = parentStart;
-        // We just want to remove skipLength between nodes
-        if (nonZeroNodeCounter > 1) {
-            parentSweep -= (nonZeroNodeCounter - (depth <= 1 ? 0 : 1)) * skipLength;
+        drawableCount = treeLayout.getCount();
+        iconAtlas.update(drawableTreeNodes, Math.round(0.75f * this.calculatedLayerHeight));
+        if (colorBatches != null) {
+            colorBatches.clear();
         }
+    }
 
-        int nonZeroWeightIndex = 0;
-
-        for (TreeNode node : nodes) {
-            if (isRadialView()) {
-                // For the radial view, I need to create the inner and outer circle
-                RectF innerCircle = getInnerCircleForDepth(depth);
-                RectF outerCircle = getOuterCircleForDepth(depth);
+    @Override
+    public void onDataSetChanged() {
+        // Log.d(TAG, "onDataSetChanged");
+        loadDrawablesFromAdapter();
+    }
 
-                float nodeSweep = 0f;
-                if (node.getWeight() > 0) {
-                    if (node.getDepth() <= 1 || nonZeroWeightIndex > 0) {
-                        nodeStart += 1;  // Adding some offset to separate the drawables
-                    }
-                    nodeSweep = ((float) node.getWeight() / totalWeight) * parentSweep;
-//                    if (depth > 1 && nonZeroWeightIndex == nonZeroNodeCounter - 1) {
-//                        nodeSweep = parentStart + realParentSweep - nodeStart;
-//                    }
-                    nonZeroWeightIndex++;
-                }
-                // FIXME, dirty fix because the maximum sweep is 360 degrees
-                if (nodeStart + nodeSweep > 360) {
-                    nodeSweep = 360 - nodeStart;
-                }
-                this.drawableTreeNodes.put(node.getPath(), RadialDrawableTreeNode.getInstance(getContext(), node,
-                        innerCircle, outerCircle, nodeStart, nodeSweep,
-                        node.getColorResId(), node.getIconResId(), 0.75f * this.calculatedLayerHeight, this.colorIcons));
-                // Log.d(TAG, String.format(Locale.ENGLISH, "%s (%d, %.1f, %.1f) as weight %.2f", node.getPath(), node.getDepth(), nodeStart, nodeSweep, node.getWeight()));
-                if (node.getChildren().size() > 0) {
-                    makeDrawableTreeNodes(node.getChildren(), nodeStart, nodeSweep, node.getWeight());
-                }
-                nodeStart += nodeSweep;
-            } else {
-                Log.e(TAG, "Not yet implemented");
+    @Override
+    public void onNodeRemoved(TreeNode node, TreeNode parent) {
+        // The indexes of a compact subtree are freed, its nodes no longer lead up to the removed one
+        if (selectedNode != null && selectedNode.isRemoved()) {
+            selectedNode = null;
+        }
+        Iterator<TreeNode> matches = matchedNodes.iterator();
+        while (matches.hasNext()) {
+            TreeNode match = matches.next();
+            if (match.isRemoved()) {
+                matches.remove();
             }
-
         }
+        // The slices of the subtree stay until the next frame, but nothing refers to them from now on
+        setPressedIndex(FlatTree.NONE);
+        selectIndex(indexOfNode(selectedNode));
+        markMatches();
+        invalidateSliceStates();
+        scheduleStructureUpdate();
     }
 
     @Override
-    public void onDataSetChanged() {
-        // Log.d(TAG, "onDataSetChanged");
-        loadDrawablesFromAdapter();
+    public void onNodeMoved(TreeNode node, TreeNode oldParent, TreeNode newParent) {
+        scheduleStructureUpdate();
+    }
+
+    @Override
+    public void onTreeCleared() {
+        selectedNode = null;
+        matchedNodes.clear();
+        structureCleared = true;
+        scheduleStructureUpdate();
+    }
+
+    private void scheduleStructureUpdate() {
+        if (!structureUpdatePending) {
+            structureUpdatePending = true;
+            ViewCompat.postOnAnimation(this, structureUpdate);
+        }
     }
 
     @Override
     public void onWeightsChanged() {
-        // TODO check this method, it does not seems to work
         // Log.d(TAG, "onWeightsChanged");
-        if (this.drawableTreeNodes.isEmpty()) {
+        if (isDrawnUpToDate()) {
+            return;
+        }
+        if (this.drawableCount == 0 || !isRadialView() || drawnAdapter != adapter || !isDrawnGeometry()) {
             onDataSetChanged();
         } else {
+            long start = System.nanoTime();
+            treeLayout = adapter.getLayout(skipLength);
+            if (!matchesLayout()) {
+                // The structure changed without notifyDataSetChanged
+                onDataSetChanged();
+                return;
+            }
+            // History playback already changes the weights once per frame
+            boolean animate = doAnimate && !isPlayingHistory();
             if (doAnimate) {
                 this.animatorSet.cancel();
                 this.animators.clear();
             }
-            if (isRadialView()) {
-                // The radial view is over 360 degrees
-                updateDrawableTreeNodes(adapter.getRootNodes(), 0, 360, -1);
-            } else {
-                // While the rectangular view uses percentages
-                updateDrawableTreeNodes(adapter.getRootNodes(), 0, 100, -1);
+            updateDrawableTreeNodes(animate);
+            if (adaptiveRings && layOutRings()) {
+                // The circles moved under the slices
+                int[] order = treeLayout.getOrder();
+                for (int k = 0; k < drawableCount; k++) {
+                    drawableTreeNodes[order[k]].invalidateGeometry();
+                }
+                if (addShadow) {
+                    setRadialShadow(shadowOffset);
+                }
             }
-            if (doAnimate) {
+            invalidateColorBatches();
+            setDrawn();
+            hitTestIndexDirty = true;
+            layoutNanos += System.nanoTime() - start;
+            if (animate) {
                 this.animatorSet.playTogether(this.animators);
                 this.animatorSet.start();
             } else {
@@ -494,100 +1414,97 @@ public class TreeView extends View implements TreeAdapter.TreeNodeChangeListener
         }
     }
 
-    private void updateDrawableTreeNodes(List<TreeNode> nodes, float parentStart, float parentSweep, double parentWeight) {
-        float totalWeight = 0;
-        int depth = -1;
-        int nonZeroNodeCounter = 0;
-        for (TreeNode node : nodes) {
-            totalWeight += node.getWeight();
-            if (node.getWeight() > 0) {
-                nonZeroNodeCounter++;
-            }
-            if (depth == -1) {
-                depth = node.getDepth();
-            } else if (depth != node.getDepth()) {
-                Log.e(TAG, "The depth of the nodes are not all equal");
-            }
+    private boolean matchesLayout() {
+        if (treeLayout.getCount() != drawableCount || treeLayout.getCapacity() > drawableTreeNodes.length) {
+            return false;
         }
-
-        // Log.d(TAG, "Parent weight: " + parentWeight);
-        // Log.d(TAG, "Total weight: " + totalWeight);
-        if (parentWeight > 0) {
-            if (parentWeight < totalWeight) {
-                Log.w(TAG, "Given weight is smaller than total weight, dismissed");
-            } else {
-                totalWeight = (float) parentWeight;
+        int[] order = treeLayout.getOrder();
+        for (int k = 0; k < treeLayout.getCount(); k++) {
+            DrawableTreeNode drawableTreeNode = drawableTreeNodes[order[k]];
+            if (drawableTreeNode == null || !treeLayout.isSameNode(order[k], drawableTreeNode.getNode())) {
+                return false;
             }
         }
+        return true;
+    }
 
-        // Log.d(TAG, "Total weight: " + totalWeight);
-
-
-        // Log.d(TAG, "Total weight: " + totalWeight);
-        float realParentSweep = parentSweep;
-        float nodeStart = parentStart;
-        // We just want to remove skipLength between nodes
-        if (nonZeroNodeCounter > 1) {
-            parentSweep -= (nonZeroNodeCounter - (depth <= 1 ? 0 : 1)) * skipLength;
-        }
-
-        int nonZeroWeightIndex = 0;
-        for (TreeNode node : nodes) {
-            if (isRadialView()) {
-
-                float nodeSweep = 0f;
-                if (node.getWeight() > 0) {
-                    if (node.getDepth() <= 1 || nonZeroWeightIndex > 0) {
-                        nodeStart += 1;  // Adding some offset to separate the drawables
-                    }
-                    nodeSweep = ((float) node.getWeight() / totalWeight) * parentSweep;
-//                    if (depth > 1 && nonZeroWeightIndex == nonZeroNodeCounter - 1) {
-//                        nodeSweep = parentStart + realParentSweep - nodeStart;
-//                    }
-
-                    // FIXME, dirty fix because the maximum sweep is 360 degrees
-                    if (nodeStart + nodeSweep > 360) {
-                        nodeSweep = 360 - nodeStart;
-                    }
-
-                    nonZeroWeightIndex++;
-                }
-                if (doAnimate) {
-                    PropertyValuesHolder pvhStart = PropertyValuesHolder.ofFloat("start",
-                            this.drawableTreeNodes.get(node.getPath()).getStart(), nodeStart);
-                    PropertyValuesHolder pvhSweep = PropertyValuesHolder.ofFloat("sweep",
-                            this.drawableTreeNodes.get(node.getPath()).getSweep(), nodeSweep);
-                    ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(
-                            this.drawableTreeNodes.get(node.getPath()), pvhStart, pvhSweep);
-                    animator.addUpdateListener(this);
-                    this.animators.add(animator);
-                    // Log.d(TAG, "Added a new animator for node " + node);
-                } else {
-                    this.drawableTreeNodes.get(node.getPath()).setStart(nodeStart);
-                    this.drawableTreeNodes.get(node.getPath()).setSweep(nodeSweep);
-                    // Log.d(TAG, "I updated the start and sweep for node  " + node);
-                }
-
-                if (node.getChildren().size() > 0) {
-                    updateDrawableTreeNodes(node.getChildren(), nodeStart, nodeSweep, node.getWeight());
-                }
-                nodeStart += nodeSweep;
+    private void updateDrawableTreeNodes(boolean animate) {
+        int[] order = treeLayout.getOrder();
+        for (int k = 0; k < treeLayout.getCount(); k++) {
+            int index = order[k];
+            DrawableTreeNode drawableTreeNode = this.drawableTreeNodes[index];
+            float nodeStart = treeLayout.getStart(index);
+            float nodeSweep = treeLayout.getSweep(index);
+            if (animate) {
+                PropertyValuesHolder pvhStart = PropertyValuesHolder.ofFloat("start",
+                        drawableTreeNode.getStart(), nodeStart);
+                PropertyValuesHolder pvhSweep = PropertyValuesHolder.ofFloat("sweep",
+                        drawableTreeNode.getSweep(), nodeSweep);
+                ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(
+                        drawableTreeNode, pvhStart, pvhSweep);
+                animator.addUpdateListener(this);
+                this.animators.add(animator);
+                // Log.d(TAG, "Added a new animator for node " + node);
             } else {
-                Log.e(TAG, "Not yet implemented");
+                drawableTreeNode.setStart(nodeStart);
+                drawableTreeNode.setSweep(nodeSweep);
+                // Log.d(TAG, "I updated the start and sweep for node  " + node);
             }
         }
-
     }
 
     @Override
     public void onAnimationUpdate(ValueAnimator valueAnimator) {
         // Log.d("TreeView", "onAnimationUpdate");
+        hitTestIndexDirty = true;
+        invalidateColorBatches();
         invalidate();
     }
 
+    private void invalidateColorBatches() {
+        if (colorBatches != null) {
+            colorBatches.invalidate();
+        }
+    }
+
     public interface OnClickListener {
         void onNodeClicked(TreeNode node);
     }
+
+    /**
+     * See {@link #setFrameTimingListener(FrameTimingListener)}, called on the UI thread at the end of the frame
+     */
+    public interface FrameTimingListener {
+
+        /**
+         * @param layoutNanos the time spent laying the slices out since the previous frame, 0 when they did not move
+         * @param drawNanos   the time spent drawing the frame
+         * @param sliceCount  the number of slices laid out
+         */
+        void onFrameTiming(long layoutNanos, long drawNanos, int sliceCount);
+    }
+
+    /**
+     * Told on the export thread when an export is over
+     */
+    public interface ExportCallback {
+
+        void onExportFinished();
+
+        void onExportFailed(Exception e);
+    }
+
+    /**
+     * Receives the tiles of {@link #exportTiles(float, int, TileSink)}, on the export thread
+     */
+    public interface TileSink extends ExportCallback {
+
+        /**
+         * The bitmap is reused for the next tile, so it must be consumed before returning.
+         * Only its top left width x height pixels belong to the output, at (left, top).
+         */
+        void onTile(Bitmap tile, int left, int top, int width, int height) throws IOException;
+    }
 }
 
 
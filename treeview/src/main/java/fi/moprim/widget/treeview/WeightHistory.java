@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Moprim
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package fi.moprim.widget.treeview;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timestamped weight deltas of the nodes of an adapter, kept in a bounded ring buffer per node.
+ * Every entry also stores the running sum of the deltas, so that the weight of a node at any
+ * retained time is its live weight minus the sum of the later deltas, without replaying them.
+ * Each node remembers where the last scrub landed, moving to a nearby time only walks the few
+ * entries in between.
+ * <p>
+ * The changes are usually recorded on the leaves only, so the ancestors without a history of their own
+ * change by the sum of the changes of their descendants.
+ */
+final class WeightHistory {
+
+    private static final int MAX_CURSOR_STEPS = 16;
+
+    private final int capacity;
+    private final HashMap<TreeNode, NodeHistory> histories;
+    // Live weights of the nodes without history that the scrub changed, put back when going live
+    private final HashMap<TreeNode, Double> savedWeights;
+    // Change of the ancestors without history, summed up from their descendants on every scrub
+    private final HashMap<TreeNode, Double> rolledUp;
+    private boolean scrubbing;
+    private boolean windowed;
+    private long startTime;
+    private long endTime;
+
+    WeightHistory(int capacity) {
+        this.capacity = capacity;
+        this.histories = new HashMap<>();
+        this.savedWeights = new HashMap<>();
+        this.rolledUp = new HashMap<>();
+        this.scrubbing = false;
+        this.windowed = false;
+        this.startTime = Long.MAX_VALUE;
+        this.endTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a delta to the live weight of the node. The displayed weight is left untouched while scrubbing.
+     */
+    void record(TreeNode node, double delta, long timestamp) {
+        NodeHistory history = histories.get(node);
+        if (history == null) {
+            // The node keeps what the scrub shows until it is scrubbed again
+            Double saved = savedWeights.remove(node);
+            history = new NodeHistory(node, capacity, saved != null ? saved : node.getWeight());
+            histories.put(node, history);
+        }
+        history.add(timestamp, delta);
+        if (!scrubbing) {
+            node.setWeight(history.live);
+        }
+        startTime = Math.min(startTime, timestamp);
+        endTime = Math.max(endTime, timestamp);
+    }
+
+    double getLiveWeight(TreeNode node) {
+        NodeHistory history = histories.get(node);
+        if (history != null) {
+            return history.live;
+        }
+        Double saved = savedWeights.get(node);
+        return saved != null ? saved : node.getWeight();
+    }
+
+    boolean isScrubbing() {
+        return scrubbing;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    long getEndTime() {
+        return endTime;
+    }
+
+    void scrubTo(long time) {
+        restoreSaved();
+        scrubbing = true;
+        rolledUp.clear();
+        for (NodeHistory history : histories.values()) {
+            double weight = history.weightAt(time);
+            history.node.setWeight(weight);
+            rollUp(history.node, weight - history.live);
+        }
+        applyRolledUp();
+    }
+
+    /**
+     * Shows how much weight every node gained between the two times.
+     * Leaves without any recorded delta did not change, so they weigh nothing in the window,
+     * and the ancestors without history weigh what their descendants gained.
+     */
+    void scrubToWindow(long from, long to, List<TreeNode> rootNodes) {
+        if (!windowed) {
+            restoreSaved();
+            zeroUnrecorded(rootNodes);
+            windowed = true;
+        } else {
+            // The ancestors whose descendants did not change in this window weigh nothing either
+            for (TreeNode ancestor : rolledUp.keySet()) {
+                ancestor.setWeight(0);
+            }
+        }
+        scrubbing = true;
+        rolledUp.clear();
+        for (NodeHistory history : histories.values()) {
+            double weight = history.weightAt(to) - history.weightAt(from);
+            history.node.setWeight(weight);
+            rollUp(history.node, weight);
+        }
+        applyRolledUp();
+    }
+
+    void resumeLive() {
+        restoreSaved();
+        for (NodeHistory history : histories.values()) {
+            history.node.setWeight(history.live);
+        }
+        scrubbing = false;
+    }
+
+    /**
+     * Drops the changes of a node taken out of the tree
+     */
+    void forget(TreeNode node) {
+        histories.remove(node);
+        savedWeights.remove(node);
+        rolledUp.remove(node);
+    }
+
+    void clear() {
+        resumeLive();
+        histories.clear();
+        startTime = Long.MAX_VALUE;
+        endTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds the change of a node to its ancestors, up to the first one that has a history of its own
+     */
+    private void rollUp(TreeNode node, double change) {
+        if (change == 0) {
+            return;
+        }
+        for (TreeNode parent = node.getParent(); parent != null && !histories.containsKey(parent);
+             parent = parent.getParent()) {
+            if (!savedWeights.containsKey(parent)) {
+                savedWeights.put(parent, parent.getWeight());
+            }
+            Double sum = rolledUp.get(parent);
+            rolledUp.put(parent, sum == null ? change : sum + change);
+        }
+    }
+
+    private void applyRolledUp() {
+        for (Map.Entry<TreeNode, Double> entry : rolledUp.entrySet()) {
+            // In a window the ancestors start from nothing, otherwise from their live weight
+            double base = windowed ? 0 : savedWeights.get(entry.getKey());
+            entry.getKey().setWeight(base + entry.getValue());
+        }
+    }
+
+    private void zeroUnrecorded(List<TreeNode> rootNodes) {
+        ArrayDeque<TreeNode> pending = new ArrayDeque<>(rootNodes);
+        while (!pending.isEmpty()) {
+            TreeNode node = pending.pop();
+            if (!histories.containsKey(node)) {
+                savedWeights.put(node, node.getWeight());
+                node.setWeight(0);
+            }
+            pending.addAll(node.getChildren());
+        }
+    }
+
+    private void restoreSaved() {
+        windowed = false;
+        for (Map.Entry<TreeNode, Double> entry : savedWeights.entrySet()) {
+            entry.getKey().setWeight(entry.getValue());
+        }
+        savedWeights.clear();
+    }
+
+    private static final class NodeHistory {
+
+        private final TreeNode node;
+        private final long[] times;
+        // Running sum of all the deltas up to and including the entry
+        private final double[] cumulative;
+        private double live;
+        private double evictedCumulative;
+        private int head;
+        private int count;
+        private int cursor;
+
+        NodeHistory(TreeNode node, int capacity, double live) {
+            this.node = node;
+            this.times = new long[capacity];
+            this.cumulative = new double[capacity];
+            this.live = live;
+            this.evictedCumulative = 0;
+            this.head = 0;
+            this.count = 0;
+            this.cursor = -1;
+        }
+
+        void add(long time, double delta) {
+            live += delta;
+            if (count == times.length) {
+                evictedCumulative = cumulative[head];
+                head = (head + 1) % times.length;
+                count--;
+                cursor = Math.max(cursor - 1, -1);
+            }
+            // Deltas mostly arrive in order, late ones are moved back in place
+            int position = count;
+            while (position > 0 && timeAt(position - 1) > time) {
+                int from = slot(position - 1);
+                int to = slot(position);
+                times[to] = times[from];
+                cumulative[to] = cumulative[from] + delta;
+                position--;
+            }
+            int slot = slot(position);
+            times[slot] = time;
+            cumulative[slot] = cumulativeAt(position - 1) + delta;
+            count++;
+        }
+
+        double weightAt(long time) {
+            int position = find(time);
+            return live - (cumulativeAt(count - 1) - cumulativeAt(position));
+        }
+
+        /**
+         * @return the position of the last entry at or before the time, -1 if they are all later
+         */
+        private int find(long time) {
+            int position = Math.min(cursor, count - 1);
+            for (int steps = 0; steps < MAX_CURSOR_STEPS; steps++) {
+                if (position + 1 < count && timeAt(position + 1) <= time) {
+                    position++;
+                } else if (position >= 0 && timeAt(position) > time) {
+                    position--;
+                } else {
+                    cursor = position;
+                    return position;
+                }
+            }
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timeAt(middle) <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            cursor = high;
+            return high;
+        }
+
+        private int slot(int position) {
+            return (head + position) % times.length;
+        }
+
+        private long timeAt(int position) {
+            return times[slot(position)];
+        }
+
+        private double cumulativeAt(int position) {
+            return position < 0 ? evictedCumulative : cumulative[slot(position)];
+        }
+    }
+}
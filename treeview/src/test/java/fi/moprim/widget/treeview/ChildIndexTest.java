@@ -0,0 +1,81 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Looks labels up in scanned and indexed sibling lists.
+ */
+public class ChildIndexTest {
+
+    @Test
+    public void smallListsAreScanned() {
+        TreeAdapter adapter = withRoots(3);
+        ChildIndex index = new ChildIndex(adapter.getRootNodes());
+        assertFinds(index, adapter.getRootNodes());
+        assertNull(index.find("missing"));
+    }
+
+    @Test
+    public void largeListsFindAppendedNodes() {
+        TreeAdapter adapter = withRoots(20);
+        ChildIndex index = new ChildIndex(adapter.getRootNodes());
+        assertFinds(index, adapter.getRootNodes());
+        for (int i = 20; i < 100; i++) {
+            adapter.addRootNode("node" + i, 1, android.R.color.white, -1);
+        }
+        assertFinds(index, adapter.getRootNodes());
+        assertNull(index.find("node100"));
+    }
+
+    @Test
+    public void theFirstOfTheSameLabelsIsFound() {
+        TreeAdapter adapter = withRoots(10);
+        TreeNode first = adapter.addRootNode("same", 1, android.R.color.white, -1);
+        adapter.addRootNode("same", 1, android.R.color.white, -1);
+        ChildIndex index = new ChildIndex(adapter.getRootNodes());
+        assertSame(first, index.find("same"));
+    }
+
+    @Test
+    public void resetForgetsTheRemovedNodes() {
+        TreeAdapter adapter = withRoots(10);
+        List<TreeNode> nodes = adapter.getRootNodes();
+        ChildIndex index = new ChildIndex(nodes);
+        TreeNode removed = nodes.remove(4);
+        index.reset();
+        assertNull(index.find(removed.getLabel()));
+        assertFinds(index, nodes);
+    }
+
+    @Test
+    public void charRangesHashLikeStrings() {
+        char[] chars = "xx node7 yy".toCharArray();
+        assertEquals("node7".hashCode(), ChildIndex.hash(chars, 3, 5));
+        TreeAdapter adapter = withRoots(10);
+        ChildIndex index = new ChildIndex(adapter.getRootNodes());
+        assertSame(index.find("node7"), index.find(chars, 3, 5));
+        assertNull(index.find(chars, 2, 5));
+    }
+
+    private static TreeAdapter withRoots(int count) {
+        TreeAdapter adapter = new TreeAdapter();
+        for (int i = 0; i < count; i++) {
+            adapter.addRootNode("node" + i, 1, android.R.color.white, -1);
+        }
+        return adapter;
+    }
+
+    private static void assertFinds(ChildIndex index, List<TreeNode> nodes) {
+        for (TreeNode node : nodes) {
+            assertSame(node, index.find(node.getLabel()));
+            char[] chars = node.getLabel().toCharArray();
+            assertSame(node, index.find(chars, 0, chars.length));
+        }
+    }
+}
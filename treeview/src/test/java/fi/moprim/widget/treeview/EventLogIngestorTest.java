@@ -0,0 +1,162 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads a log file step by step, the batches are applied right away on the reading thread.
+ */
+public class EventLogIngestorTest {
+
+    private static final double DELTA = 1e-9;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private File file;
+    private FileInputStream inputStream;
+    private FileChannel channel;
+    private TreeAdapter adapter;
+    private EventLogIngestor ingestor;
+    private EventLogIngestor.TailReader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("events", ".log");
+        inputStream = new FileInputStream(file);
+        channel = inputStream.getChannel();
+        adapter = new TreeAdapter();
+        ingestor = new EventLogIngestor(adapter, file, android.R.color.white, -1, DIRECT).setFromStart(true);
+        reader = ingestor.new TailReader();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        inputStream.close();
+        file.delete();
+    }
+
+    @Test
+    public void partialLinesWaitForTheirEnd() throws Exception {
+        append("a/b,1,10");
+        assertTrue(reader.read(channel));
+        assertEquals(0, ingestor.getAppliedCount());
+        append("0\nc,2,");
+        readAll();
+        assertEquals(1, ingestor.getAppliedCount());
+        assertEquals(1, adapter.getNode("a", "b").getWeight(), DELTA);
+        append("30\n");
+        readAll();
+        assertEquals(2, ingestor.getAppliedCount());
+        assertEquals(2, adapter.getNode("c").getWeight(), DELTA);
+        assertEquals(0, ingestor.getSkippedCount());
+    }
+
+    @Test
+    public void multibyteCharactersSplitAcrossReadsAreDecoded() throws Exception {
+        byte[] bytes = "é/日本/😀,1,1\n".getBytes("UTF-8");
+        for (int i = 0; i < bytes.length; i++) {
+            append(new byte[]{bytes[i]});
+            reader.read(channel);
+        }
+        assertEquals(1, ingestor.getAppliedCount());
+        assertEquals(1, adapter.getNode("é", "日本", "😀").getWeight(), DELTA);
+    }
+
+    @Test
+    public void truncatedLogsAreReadFromTheStart() throws Exception {
+        append("first/record,1,1\nsecond/record,1,2\n");
+        readAll();
+        assertEquals(2, ingestor.getAppliedCount());
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(0);
+        truncated.close();
+        append("x,5,3\n");
+        readAll();
+        assertEquals(3, ingestor.getAppliedCount());
+        assertEquals(5, adapter.getNode("x").getWeight(), DELTA);
+    }
+
+    @Test
+    public void fullBatchesAreHandedOverWithoutLosingRecords() throws Exception {
+        int records = 10000;
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            log.append("n").append(i % 50).append("/leaf,1,").append(i + 1).append('\n');
+        }
+        append(log.toString());
+        readAll();
+        assertEquals(records, ingestor.getAppliedCount());
+        double total = 0;
+        for (TreeNode root : adapter.getRootNodes()) {
+            total += root.getWeight();
+        }
+        assertEquals(records, total, DELTA);
+    }
+
+    @Test
+    public void pathsLongerThanABatchAreSkipped() throws Exception {
+        StringBuilder path = new StringBuilder();
+        while (path.length() <= 256 * 1024) {
+            path.append("long/");
+        }
+        append("a,1,1\n" + path + ",1,2\nb,1,3\n");
+        readAll();
+        assertEquals(2, ingestor.getAppliedCount());
+        assertEquals(1, ingestor.getSkippedCount());
+    }
+
+    @Test
+    public void malformedRecordsAreCounted() throws Exception {
+        append("no fields\na,x,1\na,1,-1\n,1,1\na,1,1\n\n");
+        readAll();
+        assertEquals(1, ingestor.getAppliedCount());
+        assertEquals(4, ingestor.getSkippedCount());
+    }
+
+    @Test
+    public void stoppedIngestorsCanStartAgain() {
+        ingestor.start(10);
+        ingestor.stop();
+        assertFalse(ingestor.isRunning());
+        ingestor.start(10);
+        assertTrue(ingestor.isRunning());
+        ingestor.stop();
+        assertFalse(ingestor.isRunning());
+    }
+
+    private void append(String text) throws IOException {
+        append(text.getBytes("UTF-8"));
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void readAll() throws Exception {
+        while (reader.read(channel)) {
+            // Until nothing is left, the last read hands the batch over
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package fi.moprim.widget.treeview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Canvas stand-in that counts the draw operations instead of rasterising them.
+ * Recording does not allocate once the color buffer is large enough, so that it does not hide
+ * the allocations of the code under test.
+ */
+class RecordingCanvas extends Canvas {
+
+    int drawPathCount;
+    int drawBitmapCount;
+    int drawTextCount;
+    int saveCount;
+    private int[] pathColors;
+
+    RecordingCanvas(int capacity) {
+        this.pathColors = new int[capacity];
+    }
+
+    void reset() {
+        drawPathCount = 0;
+        drawBitmapCount = 0;
+        drawTextCount = 0;
+        saveCount = 0;
+    }
+
+    int getDrawCalls() {
+        return drawPathCount + drawBitmapCount + drawTextCount;
+    }
+
+    /**
+     * @return the colors of the paths drawn since the last reset, in drawing order
+     */
+    int[] getPathColors() {
+        return Arrays.copyOf(pathColors, drawPathCount);
+    }
+
+    @Override
+    public void drawPath(Path path, Paint paint) {
+        if (drawPathCount == pathColors.length) {
+            pathColors = Arrays.copyOf(pathColors, pathColors.length * 2);
+        }
+        pathColors[drawPathCount++] = paint.getColor();
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+        drawBitmapCount++;
+    }
+
+    @Override
+    public void drawText(String text, float x, float y, Paint paint) {
+        drawTextCount++;
+    }
+
+    @Override
+    public void drawTextOnPath(String text, Path path, float hOffset, float vOffset, Paint paint) {
+        drawTextCount++;
+    }
+
+    @Override
+    public boolean quickReject(RectF rect, EdgeType type) {
+        // Nothing is clipped, every slice is drawn
+        return false;
+    }
+
+    @Override
+    public int save() {
+        return ++saveCount;
+    }
+
+    @Override
+    public void restore() {
+    }
+
+    @Override
+    public void translate(float dx, float dy) {
+    }
+
+    @Override
+    public void rotate(float degrees) {
+    }
+}
@@ -0,0 +1,192 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Removes, moves and clears nodes of plain and compact adapters.
+ */
+public class TreeAdapterStructureTest {
+
+    @Test
+    public void removingTheDeepestNodesLowersTheDepth() {
+        for (TreeAdapter adapter : adapters()) {
+            threeLevels(adapter);
+            assertEquals(3, adapter.getDepth());
+            adapter.removeNode(adapter.getNode("a", "a1", "a11"));
+            assertEquals(3, adapter.getDepth());
+            adapter.removeNode(adapter.getNode("b", "b1", "b11"));
+            assertEquals(2, adapter.getDepth());
+            adapter.removeNode(adapter.getNode("a"));
+            assertEquals(2, adapter.getDepth());
+        }
+    }
+
+    @Test
+    public void movingASubtreeRecountsItsDepths() {
+        for (TreeAdapter adapter : adapters()) {
+            threeLevels(adapter);
+            TreeNode b1 = adapter.getNode("b", "b1");
+            adapter.moveNode(b1, adapter.getNode("a", "a1", "a11"));
+            assertEquals(5, adapter.getDepth());
+            assertEquals(4, b1.getDepth());
+            assertEquals(5, adapter.getNode("a", "a1", "a11", "b1", "b11").getDepth());
+            adapter.moveNode(b1, null);
+            assertEquals(3, adapter.getDepth());
+            assertEquals(1, b1.getDepth());
+            assertEquals(2, adapter.getNode("b1", "b11").getDepth());
+        }
+    }
+
+    @Test
+    public void movedNodesAreOnlyFoundUnderTheirNewParent() {
+        for (TreeAdapter adapter : adapters()) {
+            threeLevels(adapter);
+            TreeNode a1 = adapter.getNode("a", "a1");
+            adapter.moveNode(a1, adapter.getNode("b"));
+            assertTrue(a1.equals(adapter.getNode("b", "a1")));
+            assertNotFound(adapter, "a", "a1");
+            // Back under its old parent
+            adapter.moveNode(a1, adapter.getNode("a"));
+            assertTrue(a1.equals(adapter.getNode("a", "a1")));
+            assertNotFound(adapter, "b", "a1");
+            assertEquals(3, adapter.getNode("a", "a1", "a11").getDepth());
+        }
+    }
+
+    @Test
+    public void clearingTheTreeLeavesTheDepthCountsEmpty() {
+        for (TreeAdapter adapter : adapters()) {
+            // Shows the depth counts as they are
+            adapter.setMinimumDepth(0);
+            threeLevels(adapter);
+            TreeNode a = adapter.getNode("a");
+            TreeNode b1 = adapter.getNode("b", "b1");
+            adapter.clear();
+            assertEquals(0, adapter.getDepth());
+            assertRefused(adapter, a, null);
+            assertRefused(adapter, b1, null);
+            TreeNode c = adapter.addRootNode("c", 1, android.R.color.white, -1);
+            adapter.addChildNode(c, "c1", 1, android.R.color.white, -1);
+            assertEquals(2, adapter.getDepth());
+            adapter.removeNode(c);
+            assertEquals(0, adapter.getDepth());
+        }
+    }
+
+    @Test
+    public void removedIndexesAreReused() {
+        TreeAdapter adapter = TreeAdapter.withCompactStore(4);
+        TreeNode root = adapter.addRootNode("root", 1, android.R.color.white, -1);
+        TreeNode kept = adapter.addChildNode(root, "kept", 1, android.R.color.white, -1);
+        for (int i = 0; i < 1000; i++) {
+            TreeNode child = adapter.addChildNode(root, "child" + i, 1, android.R.color.white, -1);
+            adapter.addChildNode(child, "leaf", 1, android.R.color.white, -1);
+            adapter.removeNode(child);
+        }
+        assertEquals(4, adapter.getStore().size);
+        assertEquals(1, root.getChildren().size());
+        assertTrue(kept.equals(adapter.getNode("root", "kept")));
+        assertNotFound(adapter, "root", "child999");
+    }
+
+    @Test
+    public void viewsOfRemovedNodesDoNotMatchTheirReplacement() {
+        TreeAdapter adapter = TreeAdapter.withCompactStore(4);
+        TreeNode a = adapter.addRootNode("a", 1, android.R.color.white, -1);
+        adapter.removeNode(a);
+        TreeNode b = adapter.addRootNode("b", 1, android.R.color.white, -1);
+        assertEquals(a.index, b.index);
+        assertFalse(a.equals(b));
+        assertTrue(a.isRemoved());
+        assertFalse(b.isRemoved());
+        assertRefused(adapter, a, null);
+    }
+
+    @Test
+    public void theNextChildWithTheSameLabelIsFoundOnceTheFirstIsGone() {
+        for (TreeAdapter adapter : adapters()) {
+            TreeNode root = adapter.addRootNode("root", 1, android.R.color.white, -1);
+            TreeNode first = adapter.addChildNode(root, "x", 1, android.R.color.white, -1);
+            TreeNode second = adapter.addChildNode(root, "x", 2, android.R.color.white, -1);
+            TreeNode third = adapter.addChildNode(root, "x", 3, android.R.color.white, -1);
+            adapter.removeNode(first);
+            assertTrue(second.equals(adapter.getNode("root", "x")));
+            adapter.moveNode(second, null);
+            assertTrue(third.equals(adapter.getNode("root", "x")));
+            adapter.removeNode(third);
+            assertNotFound(adapter, "root", "x");
+        }
+    }
+
+    @Test
+    public void lookupsSurviveTheGrowthOfTheTable() {
+        TreeAdapter adapter = TreeAdapter.withCompactStore(4);
+        TreeNode root = adapter.addRootNode("root", 1, android.R.color.white, -1);
+        adapter.addChildNode(root, "y", 1, android.R.color.white, -1);
+        TreeNode first = adapter.addChildNode(root, "x", 1, android.R.color.white, -1);
+        adapter.removeNode(adapter.getNode("root", "y"));
+        // The later "x" takes the index of "y", lower than the index of the first one
+        TreeNode second = adapter.addChildNode(root, "x", 1, android.R.color.white, -1);
+        assertTrue(second.index < first.index);
+        for (int i = 0; i < 100; i++) {
+            adapter.addChildNode(root, "child" + i, 1, android.R.color.white, -1);
+        }
+        assertTrue(first.equals(adapter.getNode("root", "x")));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("child" + i, adapter.getNode("root", "child" + i).getLabel());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodesCannotMoveWithinTheirOwnSubtree() {
+        TreeAdapter adapter = threeLevels(TreeAdapter.withCompactStore(4));
+        adapter.moveNode(adapter.getNode("a"), adapter.getNode("a", "a1", "a11"));
+    }
+
+    private static TreeAdapter[] adapters() {
+        return new TreeAdapter[]{new TreeAdapter(), TreeAdapter.withCompactStore(4)};
+    }
+
+    /**
+     * a/a1/a11, a/a2, b/b1/b11
+     */
+    private static TreeAdapter threeLevels(TreeAdapter adapter) {
+        TreeNode a = adapter.addRootNode("a", 1, android.R.color.white, -1);
+        TreeNode b = adapter.addRootNode("b", 1, android.R.color.white, -1);
+        TreeNode a1 = adapter.addChildNode(a, "a1", 1, android.R.color.white, -1);
+        adapter.addChildNode(a1, "a11", 1, android.R.color.white, -1);
+        adapter.addChildNode(a, "a2", 1, android.R.color.white, -1);
+        TreeNode b1 = adapter.addChildNode(b, "b1", 1, android.R.color.white, -1);
+        adapter.addChildNode(b1, "b11", 1, android.R.color.white, -1);
+        return adapter;
+    }
+
+    private static void assertNotFound(TreeAdapter adapter, String... path) {
+        try {
+            adapter.getNode(path);
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        throw new AssertionError("Found " + Arrays.toString(path));
+    }
+
+    private static void assertRefused(TreeAdapter adapter, TreeNode node, TreeNode newParent) {
+        try {
+            adapter.moveNode(node, newParent);
+        } catch (IllegalArgumentException e) {
+            try {
+                adapter.removeNode(node);
+            } catch (IllegalArgumentException again) {
+                return;
+            }
+        }
+        throw new AssertionError(node + " was not refused");
+    }
+}
@@ -0,0 +1,133 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports CSV and JSON lines records into plain adapters.
+ */
+public class TreeImporterTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void csvRecordsRollUpAlongTheirPath() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(3, importer.importCsv(new StringReader("a/b,1\na/c, 2.5\r\n\"a/b\",0.5")));
+        assertEquals(0, importer.getSkippedCount());
+        assertEquals(3, importer.getCreatedCount());
+        assertEquals(4, adapter.getNode("a").getWeight(), DELTA);
+        assertEquals(1.5, adapter.getNode("a", "b").getWeight(), DELTA);
+        assertEquals(2.5, adapter.getNode("a", "c").getWeight(), DELTA);
+    }
+
+    @Test
+    public void csvWeightsAreTheLastField() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter).setFieldSeparator(';').setRollUp(false);
+        assertEquals(1, importer.importCsv(new StringReader("a;b/c;2")));
+        assertEquals(0, adapter.getNode("a;b").getWeight(), DELTA);
+        assertEquals(2, adapter.getNode("a;b", "c").getWeight(), DELTA);
+    }
+
+    @Test
+    public void malformedCsvRecordsAreSkipped() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(1, importer.importCsv(new StringReader("a,1\nno weight\nb,x\nc,NaN\n/,1\n\n")));
+        assertEquals(4, importer.getSkippedCount());
+        assertEquals(1, adapter.getRootNodes().size());
+    }
+
+    @Test
+    public void recordsLongerThanTheBufferAreKept() throws IOException {
+        StringBuilder label = new StringBuilder();
+        while (label.length() < 100 * 1024) {
+            label.append("0123456789");
+        }
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(2, importer.importCsv(new StringReader("a,1\n" + label + ",2")));
+        assertEquals(2, adapter.getNode(label.toString()).getWeight(), DELTA);
+    }
+
+    @Test
+    public void jsonRecordsSkipTheOtherKeys() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(2, importer.importJsonLines(new StringReader(
+                "{\"weight\": 2, \"path\": \"a/b\"}\n"
+                        + "{\"meta\": {\"path\": \"x\", \"list\": [1, \"]\"]}, \"path\": \"a\", \"weight\": 1e1}")));
+        assertEquals(12, adapter.getNode("a").getWeight(), DELTA);
+        assertEquals(2, adapter.getNode("a", "b").getWeight(), DELTA);
+    }
+
+    @Test
+    public void jsonEscapesAreDecoded() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(2, importer.importJsonLines(new StringReader(
+                "{\"path\": \"q\\\"t\\\\/\\u00e9\\u00C9\", \"weight\": 1}\n"
+                        + "{\"path\": \"tab\\there\", \"weight\": 1}")));
+        assertEquals(1, adapter.getNode("q\"t\\", "éÉ").getWeight(), DELTA);
+        assertEquals(1, adapter.getNode("tab\there").getWeight(), DELTA);
+    }
+
+    @Test
+    public void malformedUnicodeEscapesSkipTheRecord() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(1, importer.importJsonLines(new StringReader(
+                "{\"path\": \"a\\u00zz\", \"weight\": 1}\n"
+                        + "{\"path\": \"b\\u12\", \"weight\": 1}\n"
+                        + "{\"path\": \"c\\u-123\", \"weight\": 1}\n"
+                        + "{\"path\": \"d\", \"weight\": 1}")));
+        assertEquals(3, importer.getSkippedCount());
+        assertEquals(1, adapter.getRootNodes().size());
+        assertEquals("d", adapter.getRootNodes().get(0).getLabel());
+    }
+
+    @Test
+    public void malformedJsonRecordsAreSkipped() throws IOException {
+        TreeAdapter adapter = new TreeAdapter();
+        TreeImporter importer = importer(adapter);
+        assertEquals(0, importer.importJsonLines(new StringReader(
+                "[1]\n{\"path\": \"a\"}\n{\"path\": \"a, \"weight\": 1}\n{\"path\" \"a\", \"weight\": 1}")));
+        assertEquals(4, importer.getSkippedCount());
+        assertTrue(adapter.getRootNodes().isEmpty());
+    }
+
+    @Test
+    public void numbersAreParsedLikeParseDouble() {
+        String[] numbers = {"0", "-0", "+3", "42", "-17.25", ".5", "5.", "1e3", "1E-3", "2.5e+2",
+                "0.1", "123456789012345", "1234567890123456789", "0.000000000000000000000001",
+                "1e300", "4.9e-324", "00012"};
+        for (String number : numbers) {
+            assertEquals(number, Double.parseDouble(number), parse(number), 0);
+        }
+    }
+
+    @Test
+    public void invalidNumbersAreNaN() {
+        String[] numbers = {"", "-", "x", "1e", "1e+", "1.2.3", "1x", "--1"};
+        for (String number : numbers) {
+            assertTrue(number, Double.isNaN(parse(number)));
+        }
+    }
+
+    private static TreeImporter importer(TreeAdapter adapter) {
+        return new TreeImporter(adapter, android.R.color.white, -1);
+    }
+
+    private static double parse(String number) {
+        // Within a larger buffer, like records are
+        char[] chars = ("[" + number + "]").toCharArray();
+        return TreeImporter.parseNumber(chars, 1, chars.length - 1);
+    }
+}
@@ -0,0 +1,56 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Takes snapshots of plain and compact adapters as their weights change.
+ */
+public class TreeSnapshotTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void resettingTheWeightsEmptiesTheNextSnapshot() {
+        for (TreeAdapter adapter : adapters()) {
+            twoRoots(adapter);
+            TreeSnapshot.Node before = adapter.snapshot().getNode("a", "a1");
+            assertEquals(5, before.getWeight(), DELTA);
+            adapter.resetWeights();
+            TreeSnapshot snapshot = adapter.snapshot();
+            assertNotSame(before, snapshot.getNode("a", "a1"));
+            assertEquals(0, snapshot.getNode("a").getWeight(), DELTA);
+            assertEquals(0, snapshot.getNode("a", "a1").getWeight(), DELTA);
+            assertEquals(0, snapshot.getNode("b").getWeight(), DELTA);
+            // The snapshot before keeps its weights
+            assertEquals(5, before.getWeight(), DELTA);
+        }
+    }
+
+    @Test
+    public void unchangedSubtreesAreShared() {
+        TreeAdapter adapter = twoRoots(TreeAdapter.withCompactStore(4));
+        TreeSnapshot before = adapter.snapshot();
+        adapter.getNode("a", "a1").setWeight(2);
+        TreeSnapshot after = adapter.snapshot();
+        assertEquals(2, after.getNode("a", "a1").getWeight(), DELTA);
+        assertSame(before.getNode("b"), after.getNode("b"));
+    }
+
+    private static TreeAdapter[] adapters() {
+        return new TreeAdapter[]{new TreeAdapter(), TreeAdapter.withCompactStore(4)};
+    }
+
+    /**
+     * a/a1, b
+     */
+    private static TreeAdapter twoRoots(TreeAdapter adapter) {
+        TreeNode a = adapter.addRootNode("a", 5, android.R.color.white, -1);
+        adapter.addChildNode(a, "a1", 5, android.R.color.white, -1);
+        adapter.addRootNode("b", 3, android.R.color.white, -1);
+        return adapter;
+    }
+}
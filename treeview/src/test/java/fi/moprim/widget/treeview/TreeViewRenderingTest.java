@@ -0,0 +1,366 @@
+package fi.moprim.widget.treeview;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a tree view through layout, weight updates and animation frames on synthetic trees,
+ * and checks the draw operations and allocations of each frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TreeViewRenderingTest {
+
+    private static final int SIZE = 800;
+    private static final float SKIP_LENGTH = 1f;
+    // The shadow ring is drawn under the slices
+    private static final int SHADOW_PATHS = 1;
+    private static final int MAX_BYTES_PER_FRAME = 64;
+    private static final int[] COLORS = {
+            android.R.color.holo_blue_dark,
+            android.R.color.holo_green_dark,
+            android.R.color.holo_orange_dark,
+            android.R.color.holo_red_dark
+    };
+
+    @Test
+    public void drawsOneWedgePerVisibleSlice() {
+        TreeAdapter adapter = syntheticTree(3, 4, 5);
+        TreeView treeView = layout(adapter, false);
+        RecordingCanvas canvas = drawFrame(treeView, new RecordingCanvas(256));
+        assertEquals(SHADOW_PATHS + sliceCount(3, 4, 5), canvas.drawPathCount);
+        assertEquals(0, canvas.drawBitmapCount);
+        assertEquals(0, canvas.drawTextCount);
+    }
+
+    @Test
+    public void skipsSlicesWithoutWeight() {
+        TreeAdapter adapter = syntheticTree(2, 3, 3);
+        adapter.getNode("root0", "child0.0", "leaf0.0.0").setWeight(0);
+        TreeView treeView = layout(adapter, false);
+        RecordingCanvas canvas = drawFrame(treeView, new RecordingCanvas(256));
+        assertEquals(SHADOW_PATHS + sliceCount(2, 3, 3) - 1, canvas.drawPathCount);
+    }
+
+    @Test
+    public void weightUpdateMovesSlicesToTheNewLayout() {
+        TreeAdapter adapter = syntheticTree(2, 3, 4);
+        TreeView treeView = layout(adapter, false);
+        int before = drawFrame(treeView, new RecordingCanvas(256)).drawPathCount;
+
+        adapter.addWeight(6, "root1", "child1.2", "leaf1.2.3");
+        adapter.addWeight(6, "root1", "child1.2");
+        adapter.addWeight(6, "root1");
+        adapter.notifyWeightsChanged();
+
+        assertEquals(before, drawFrame(treeView, new RecordingCanvas(256)).drawPathCount);
+        TreeLayout treeLayout = adapter.getLayout(SKIP_LENGTH);
+        int[] order = treeLayout.getOrder();
+        for (int k = 0; k < treeLayout.getCount(); k++) {
+            DrawableTreeNode drawableTreeNode = treeView.getDrawableTreeNode(order[k]);
+            assertEquals(treeLayout.getStart(order[k]), drawableTreeNode.getStart(), 0f);
+            assertEquals(treeLayout.getSweep(order[k]), drawableTreeNode.getSweep(), 0f);
+        }
+    }
+
+    @Test
+    public void unchangedNotificationsKeepTheSlices() {
+        TreeAdapter adapter = syntheticTree(2, 3, 4);
+        TreeView treeView = layout(adapter, false);
+        DrawableTreeNode first = treeView.getDrawableTreeNode(0);
+        adapter.notifyDataSetChanged();
+        adapter.notifyWeightsChanged();
+        assertTrue(first == treeView.getDrawableTreeNode(0));
+    }
+
+    @Test
+    public void selectionDrawsItsPathOnTop() {
+        TreeAdapter adapter = syntheticTree(2, 3, 4);
+        TreeView treeView = layout(adapter, false);
+        int base = drawFrame(treeView, new RecordingCanvas(256)).drawPathCount;
+        TreeNode leaf = adapter.getNode("root1", "child1.1", "leaf1.1.2");
+        treeView.setSelectedNode(leaf);
+        // One outline for the selected slice, one for each of its ancestors
+        assertEquals(base + leaf.getDepth(), drawFrame(treeView, new RecordingCanvas(256)).drawPathCount);
+    }
+
+    @Test
+    public void removingTheSelectedNodeOfACompactTreeClearsItsPathAtOnce() {
+        TreeAdapter adapter = syntheticTree(TreeAdapter.withCompactStore(64), 2, 3, 4);
+        TreeView treeView = layout(adapter, false);
+        int base = drawFrame(treeView, new RecordingCanvas(256)).drawPathCount;
+        TreeNode child = adapter.getNode("root1", "child1.1");
+        treeView.setSelectedNode(adapter.getNode("root1", "child1.1", "leaf1.1.2"));
+        drawFrame(treeView, new RecordingCanvas(256));
+
+        adapter.removeNode(child);
+        // The store already unlinked the subtree, the slices are only made again on the next frame
+        treeView.setSelectedNode(null);
+        treeView.setMatchedNodes(Collections.singleton(adapter.getNode("root1", "child1.0", "leaf1.0.0")));
+        assertNull(treeView.getSelectedNode());
+        // The removed slices are still drawn until then, the matched leaf has two outlines and its ancestors one
+        assertEquals(base + 4, drawFrame(treeView, new RecordingCanvas(256)).drawPathCount);
+    }
+
+    @Test
+    public void animationFramesKeepTheSameDrawCalls() {
+        TreeAdapter adapter = syntheticTree(3, 3, 3);
+        TreeView treeView = layout(adapter, true);
+        RecordingCanvas canvas = new RecordingCanvas(256);
+        int expected = drawFrame(treeView, canvas).getDrawCalls();
+
+        adapter.addWeight(9, "root2", "child2.0", "leaf2.0.1");
+        adapter.addWeight(9, "root2", "child2.0");
+        adapter.addWeight(9, "root2");
+        adapter.notifyWeightsChanged();
+        for (int frame = 0; frame < 30; frame++) {
+            ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+            assertEquals("frame " + frame, expected, drawFrame(treeView, canvas).getDrawCalls());
+        }
+    }
+
+    @Test
+    public void steadyFramesDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        TreeView small = layout(syntheticTree(2, 4, 4), false);
+        TreeView large = layout(syntheticTree(8, 10, 20), false);
+        long smallBytes = bytesPerFrame(threads, small);
+        long largeBytes = bytesPerFrame(threads, large);
+        assertTrue("Allocated " + smallBytes + " bytes per frame", smallBytes <= MAX_BYTES_PER_FRAME);
+        // Nothing may be allocated per slice
+        assertTrue("Allocated " + largeBytes + " bytes per frame on a larger tree", largeBytes <= MAX_BYTES_PER_FRAME);
+    }
+
+    @Test
+    public void batchedSlicesDrawOnePathPerColor() {
+        TreeView small = layout(syntheticTree(2, 3, 4), false, true);
+        TreeView large = layout(syntheticTree(8, 10, 20), false, true);
+        assertEquals(SHADOW_PATHS + COLORS.length, drawFrame(small, new RecordingCanvas(256)).drawPathCount);
+        assertEquals(SHADOW_PATHS + COLORS.length, drawFrame(large, new RecordingCanvas(256)).drawPathCount);
+    }
+
+    @Test
+    public void batchedAnimationFramesKeepOnePathPerColor() {
+        TreeAdapter adapter = syntheticTree(3, 3, 3);
+        TreeView treeView = layout(adapter, true, true);
+        RecordingCanvas canvas = new RecordingCanvas(256);
+        assertEquals(SHADOW_PATHS + COLORS.length, drawFrame(treeView, canvas).drawPathCount);
+
+        adapter.addWeight(9, "root2", "child2.0", "leaf2.0.1");
+        adapter.addWeight(9, "root2", "child2.0");
+        adapter.addWeight(9, "root2");
+        adapter.notifyWeightsChanged();
+        for (int frame = 0; frame < 30; frame++) {
+            ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+            assertEquals("frame " + frame, SHADOW_PATHS + COLORS.length, drawFrame(treeView, canvas).drawPathCount);
+        }
+    }
+
+    @Test
+    public void steadyBatchedFramesDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        long bytes = bytesPerFrame(threads, layout(syntheticTree(8, 10, 20), false, true));
+        assertTrue("Allocated " + bytes + " bytes per frame", bytes <= MAX_BYTES_PER_FRAME);
+    }
+
+    @Test
+    public void rotationOnlyMovesTheHitTests() {
+        TreeAdapter adapter = syntheticTree(3, 3, 3);
+        TreeView treeView = layout(adapter, false);
+        int drawCalls = drawFrame(treeView, new RecordingCanvas(256)).getDrawCalls();
+        int index = indexOf(treeView, adapter.getNode("root1"));
+        DrawableTreeNode drawableTreeNode = treeView.getDrawableTreeNode(index);
+        float x = drawableTreeNode.middlePoint.x - SIZE / 2f;
+        float y = drawableTreeNode.middlePoint.y - SIZE / 2f;
+        float start = drawableTreeNode.getStart();
+        assertEquals(index, treeView.findSliceAt(SIZE / 2f + x, SIZE / 2f + y));
+
+        treeView.setRingRotation(90);
+        // A quarter turn clockwise
+        assertEquals(index, treeView.findSliceAt(SIZE / 2f - y, SIZE / 2f + x));
+        assertEquals(start, treeView.getDrawableTreeNode(index).getStart(), 0f);
+        assertEquals(drawCalls, drawFrame(treeView, new RecordingCanvas(256)).getDrawCalls());
+    }
+
+    @Test
+    public void drawCallsDoNotDependOnTheFrame() {
+        TreeView treeView = layout(syntheticTree(4, 5, 6), false);
+        RecordingCanvas canvas = new RecordingCanvas(256);
+        int first = drawFrame(treeView, canvas).getDrawCalls();
+        for (int frame = 0; frame < 10; frame++) {
+            assertEquals(first, drawFrame(treeView, canvas).getDrawCalls());
+        }
+    }
+
+    @Test
+    public void trimmedSlicesAreLoadedAgainOnTheNextFrame() {
+        TreeAdapter adapter = syntheticTree(3, 3, 3);
+        TreeView treeView = layout(adapter, false);
+        int[] colors = drawFrame(treeView, new RecordingCanvas(256)).getPathColors();
+        int index = indexOf(treeView, adapter.getNode("root1"));
+
+        treeView.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertNull(treeView.getDrawableTreeNode(index));
+        assertArrayEquals(colors, drawFrame(treeView, new RecordingCanvas(256)).getPathColors());
+        assertEquals(index, indexOf(treeView, adapter.getNode("root1")));
+    }
+
+    @Test
+    public void comparisonColorsSlicesByChange() {
+        TreeAdapter before = syntheticTree(2, 3, 3);
+        TreeAdapter after = syntheticTree(2, 3, 3);
+        after.getNode("root0", "child0.0", "leaf0.0.0").setWeight(2);
+        after.getNode("root1", "child1.2", "leaf1.2.1").setWeight(0.5);
+        TreeView treeView = layout(new TreeComparison(before, after).compare(), false);
+        int gained = ContextCompat.getColor(RuntimeEnvironment.application, android.R.color.holo_green_dark);
+        int lost = ContextCompat.getColor(RuntimeEnvironment.application, android.R.color.holo_red_dark);
+        int gainedCount = 0;
+        int lostCount = 0;
+        int[] colors = drawFrame(treeView, new RecordingCanvas(256)).getPathColors();
+        for (int color : colors) {
+            gainedCount += color == gained ? 1 : 0;
+            lostCount += color == lost ? 1 : 0;
+        }
+        assertEquals(1, gainedCount);
+        assertEquals(1, lostCount);
+        assertEquals(SHADOW_PATHS + sliceCount(2, 3, 3), colors.length);
+    }
+
+    @Test
+    public void adaptiveRingsGiveTheRoomOfEmptyRingsToTheOthers() {
+        TreeAdapter adapter = syntheticTree(2, 2, 2);
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                for (int k = 0; k < 2; k++) {
+                    adapter.getNode("root" + i, "child" + i + "." + j, "leaf" + i + "." + j + "." + k).setWeight(0);
+                }
+            }
+        }
+        TreeNode child = adapter.getNode("root1", "child1.0");
+        TreeView uniform = layout(adapter, false, false, false);
+        TreeView adaptive = layout(adapter, false, false, true);
+        DrawableTreeNode uniformSlice = uniform.getDrawableTreeNode(indexOf(uniform, child));
+        DrawableTreeNode adaptiveSlice = adaptive.getDrawableTreeNode(indexOf(adaptive, child));
+        drawFrame(uniform, new RecordingCanvas(256));
+        drawFrame(adaptive, new RecordingCanvas(256));
+        // The empty leaf ring collapsed, the rings below it are thicker
+        assertTrue(distanceFromCenter(adaptiveSlice) > distanceFromCenter(uniformSlice));
+        assertEquals(indexOf(adaptive, child),
+                adaptive.findSliceAt(adaptiveSlice.middlePoint.x, adaptiveSlice.middlePoint.y));
+    }
+
+    private static float distanceFromCenter(DrawableTreeNode drawableTreeNode) {
+        float dx = drawableTreeNode.middlePoint.x - SIZE / 2f;
+        float dy = drawableTreeNode.middlePoint.y - SIZE / 2f;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static long bytesPerFrame(com.sun.management.ThreadMXBean threads, TreeView treeView) {
+        RecordingCanvas canvas = new RecordingCanvas(4096);
+        // Warm up so that lazily built structures are not counted
+        for (int frame = 0; frame < 20; frame++) {
+            drawFrame(treeView, canvas);
+        }
+        int frames = 200;
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int frame = 0; frame < frames; frame++) {
+            drawFrame(treeView, canvas);
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / frames;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+
+    private static RecordingCanvas drawFrame(TreeView treeView, RecordingCanvas canvas) {
+        canvas.reset();
+        treeView.onDraw(canvas);
+        return canvas;
+    }
+
+    private static TreeView layout(TreeAdapter adapter, boolean animate) {
+        return layout(adapter, animate, false);
+    }
+
+    private static TreeView layout(TreeAdapter adapter, boolean animate, boolean batchColors) {
+        return layout(adapter, animate, batchColors, false);
+    }
+
+    private static TreeView layout(TreeAdapter adapter, boolean animate, boolean batchColors,
+                                   boolean adaptiveRings) {
+        AttributeSet attrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.animate, String.valueOf(animate))
+                .addAttribute(R.attr.batch_colors, String.valueOf(batchColors))
+                .addAttribute(R.attr.adaptive_rings, String.valueOf(adaptiveRings))
+                .build();
+        TreeView treeView = new TreeView(RuntimeEnvironment.application, attrs);
+        treeView.setTreeMapAdapter(adapter);
+        int spec = View.MeasureSpec.makeMeasureSpec(SIZE, View.MeasureSpec.EXACTLY);
+        treeView.measure(spec, spec);
+        treeView.layout(0, 0, SIZE, SIZE);
+        return treeView;
+    }
+
+    private static int indexOf(TreeView treeView, TreeNode node) {
+        for (int index = 0; index < 4096; index++) {
+            DrawableTreeNode drawableTreeNode = treeView.getDrawableTreeNode(index);
+            if (drawableTreeNode != null && drawableTreeNode.getNode() == node) {
+                return index;
+            }
+        }
+        throw new AssertionError(node.getLabel() + " is not drawn");
+    }
+
+    private static int sliceCount(int roots, int children, int leaves) {
+        return roots + roots * children + roots * children * leaves;
+    }
+
+    /**
+     * Every leaf weighs one and every parent the sum of its children
+     */
+    private static TreeAdapter syntheticTree(int roots, int children, int leaves) {
+        return syntheticTree(new TreeAdapter(), roots, children, leaves);
+    }
+
+    private static TreeAdapter syntheticTree(TreeAdapter adapter, int roots, int children, int leaves) {
+        for (int i = 0; i < roots; i++) {
+            TreeNode root = adapter.addRootNode("root" + i, children * leaves, COLORS[i % COLORS.length], -1);
+            for (int j = 0; j < children; j++) {
+                TreeNode child = adapter.addChildNode(root, "child" + i + "." + j, leaves,
+                        COLORS[(i + j + 1) % COLORS.length], -1);
+                for (int k = 0; k < leaves; k++) {
+                    adapter.addChildNode(child, "leaf" + i + "." + j + "." + k, 1,
+                            COLORS[(i + j + k + 2) % COLORS.length], -1);
+                }
+            }
+        }
+        return adapter;
+    }
+}
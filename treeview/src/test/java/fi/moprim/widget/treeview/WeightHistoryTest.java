@@ -0,0 +1,121 @@
+package fi.moprim.widget.treeview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrubs trees whose weight changes are recorded on the leaves only, as addWeight(double, String...) does.
+ */
+public class WeightHistoryTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void scrubToRollsTheLeavesUpToTheirAncestors() {
+        TreeAdapter adapter = leafOnlyTree(new TreeAdapter());
+        adapter.scrubTo(150);
+        assertEquals(1, weight(adapter, "a", "a1"), DELTA);
+        assertEquals(0, weight(adapter, "a", "a2"), DELTA);
+        assertEquals(0, weight(adapter, "b", "b1"), DELTA);
+        // a gained 5 and b gained 4 after 150
+        assertEquals(1, weight(adapter, "a"), DELTA);
+        assertEquals(0, weight(adapter, "b"), DELTA);
+
+        adapter.scrubTo(1000);
+        assertEquals(6, weight(adapter, "a"), DELTA);
+        assertEquals(4, weight(adapter, "b"), DELTA);
+    }
+
+    @Test
+    public void scrubToWindowWeighsWhatTheSubtreesGained() {
+        TreeAdapter adapter = leafOnlyTree(new TreeAdapter());
+        adapter.scrubToWindow(150, 350);
+        assertEquals(2, weight(adapter, "a", "a1"), DELTA);
+        assertEquals(3, weight(adapter, "a", "a2"), DELTA);
+        assertEquals(0, weight(adapter, "b", "b1"), DELTA);
+        assertEquals(0, weight(adapter, "b", "b2"), DELTA);
+        assertEquals(5, weight(adapter, "a"), DELTA);
+        assertEquals(0, weight(adapter, "b"), DELTA);
+
+        adapter.scrubToWindow(250, 450);
+        assertEquals(3, weight(adapter, "a"), DELTA);
+        assertEquals(4, weight(adapter, "b"), DELTA);
+    }
+
+    @Test
+    public void emptyWindowsLeaveTheAncestorsEmpty() {
+        TreeAdapter adapter = leafOnlyTree(new TreeAdapter());
+        adapter.scrubToWindow(150, 250);
+        assertEquals(2, weight(adapter, "a"), DELTA);
+        adapter.scrubToWindow(500, 600);
+        assertEquals(0, weight(adapter, "a", "a1"), DELTA);
+        assertEquals(0, weight(adapter, "a"), DELTA);
+        assertEquals(0, weight(adapter, "b"), DELTA);
+        adapter.resumeLive();
+        assertEquals(6, weight(adapter, "a"), DELTA);
+    }
+
+    @Test
+    public void resumeLiveRestoresEveryWeight() {
+        TreeAdapter adapter = leafOnlyTree(new TreeAdapter());
+        adapter.scrubToWindow(150, 350);
+        adapter.scrubTo(150);
+        adapter.resumeLive();
+        assertFalse(adapter.isScrubbing());
+        assertEquals(6, weight(adapter, "a"), DELTA);
+        assertEquals(4, weight(adapter, "b"), DELTA);
+        assertEquals(0, weight(adapter, "b", "b2"), DELTA);
+        assertEquals(4, weight(adapter, "b", "b1"), DELTA);
+    }
+
+    @Test
+    public void changesWhileScrubbingOnlyMoveTheLiveWeights() {
+        TreeAdapter adapter = leafOnlyTree(new TreeAdapter());
+        adapter.scrubToWindow(150, 350);
+        adapter.addWeight(2, 500, "b", "b2");
+        assertTrue(adapter.isScrubbing());
+        assertEquals(0, weight(adapter, "b"), DELTA);
+        adapter.resumeLive();
+        assertEquals(2, weight(adapter, "b", "b2"), DELTA);
+    }
+
+    @Test
+    public void compactTreesScrubTheSameWay() {
+        TreeAdapter adapter = leafOnlyTree(TreeAdapter.withCompactStore(8));
+        adapter.scrubToWindow(150, 350);
+        assertEquals(5, weight(adapter, "a"), DELTA);
+        adapter.scrubTo(150);
+        assertEquals(1, weight(adapter, "a"), DELTA);
+        adapter.resumeLive();
+        assertEquals(6, weight(adapter, "a"), DELTA);
+    }
+
+    /**
+     * Parents start at the sum of their children, which start at 0, then only the leaves change:
+     * a1 +1 at 100, a1 +2 at 200, a2 +3 at 300, b1 +4 at 400
+     */
+    private static TreeAdapter leafOnlyTree(TreeAdapter adapter) {
+        TreeNode a = adapter.addRootNode("a", 0, android.R.color.white, -1);
+        TreeNode b = adapter.addRootNode("b", 0, android.R.color.white, -1);
+        adapter.addChildNode(a, "a1", 0, android.R.color.white, -1);
+        adapter.addChildNode(a, "a2", 0, android.R.color.white, -1);
+        adapter.addChildNode(b, "b1", 0, android.R.color.white, -1);
+        adapter.addChildNode(b, "b2", 0, android.R.color.white, -1);
+        adapter.enableWeightHistory(16);
+        adapter.addWeight(1, 100, "a", "a1");
+        adapter.addWeight(2, 200, "a", "a1");
+        adapter.addWeight(3, 300, "a", "a2");
+        adapter.addWeight(4, 400, "b", "b1");
+        // Leaf-only recording leaves the parents at their own live weight
+        adapter.getNode("a").setWeight(6);
+        adapter.getNode("b").setWeight(4);
+        return adapter;
+    }
+
+    private static double weight(TreeAdapter adapter, String... path) {
+        return adapter.getNode(path).getWeight();
+    }
+}